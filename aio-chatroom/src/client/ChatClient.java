@@ -8,6 +8,8 @@ import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.Charset;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ChatClient {
 
@@ -15,10 +17,19 @@ public class ChatClient {
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
     private static final int BUFFER = 1024;
+    // 重连的等待时间从MIN_BACKOFF开始每次翻倍，最多MAX_BACKOFF
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30_000;
+    // 多久没有收到服务器的数据时发送心跳，发送后再过这么久还没有收到数据就认为连接已经断开
+    private static final long HEARTBEAT = 30_000;
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
 
     private String host;
     private int port;
-    private AsynchronousSocketChannel clientChannel;
+    // 断线期间为null
+    private volatile AsynchronousSocketChannel clientChannel;
+    private volatile boolean quit;
     private Charset charset = Charset.forName("UTF-8");
 
     public ChatClient() {
@@ -45,47 +56,141 @@ public class ChatClient {
     }
 
     private void start() {
+        // 处理用户的输入，写入服务器，重连时不需要重新启动
+        new Thread(new UserInputHandler(this)).start();
+        long backoff = MIN_BACKOFF;
+        while (!quit) {
+            if (connect()) {
+                backoff = MIN_BACKOFF;
+            }
+            if (quit) {
+                break;
+            }
+            // 文本协议没有消息序号，重连后只能收到服务器发送的房间最近消息
+            System.out.println("与服务器的连接已断开，" + backoff + "毫秒后重连");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * 连接服务器并读取消息，直到连接断开
+     * @return 是否连接成功过
+     */
+    private boolean connect() {
+        AsynchronousSocketChannel channel = null;
         try {
             // 创建channel
-            clientChannel = AsynchronousSocketChannel.open();
+            channel = AsynchronousSocketChannel.open();
             // 使用Future对象获得返回connect结果，future.get()确保连接成功
-            Future<Void> future = clientChannel.connect(new InetSocketAddress(host, port));
+            Future<Void> future = channel.connect(new InetSocketAddress(host, port));
             future.get();
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println("连接服务器失败：" + e.getMessage());
+            close(channel);
+            return false;
+        }
+        clientChannel = channel;
 
-            // 处理用户的输入，写入服务器
-            new Thread(new UserInputHandler(this)).start();
-
+        try {
             // 接下来是读取服务器传来的消息，即其他用户发送的消息
             ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+            // 还没有收到换行的半条消息
+            StringBuilder line = new StringBuilder();
             while (true) {
-                Future<Integer> readResult = clientChannel.read(buffer);
-                int result = readResult.get();
+                Future<Integer> readResult = channel.read(buffer);
+                Integer result = await(readResult);
+                if (result == null) {
+                    System.out.println("服务器" + 2 * HEARTBEAT + "毫秒没有响应");
+                    break;
+                }
                 if (result <= 0) {
                     // 服务器异常
                     System.out.println("服务器断开");
-                    close(clientChannel);
-                    System.exit(1);
+                    break;
                 } else {
                     buffer.flip();
-                    String msg = String.valueOf(charset.decode(buffer));
+                    line.append(charset.decode(buffer));
                     buffer.clear();
-                    System.out.println(msg);
+                    // 服务器发来的每条消息都以换行结尾
+                    receive(line);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            if (!quit) {
+                e.printStackTrace();
+            }
+        } finally {
+            clientChannel = null;
+            close(channel);
+        }
+        return true;
+    }
+
+    /**
+     * 等待一次读完成，服务器一段时间没有发来数据时发送一次心跳，
+     * 服务器崩溃或者网络断开时TCP连接收不到FIN，只能靠心跳发现
+     * 超时后读操作仍然在进行，继续等待同一个Future，不会丢数据
+     * @return 读到的字节数，发送心跳后仍然没有收到数据时返回null
+     */
+    private Integer await(Future<Integer> readResult) throws InterruptedException, ExecutionException {
+        boolean pinged = false;
+        while (true) {
+            try {
+                return readResult.get(HEARTBEAT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (pinged) {
+                    return null;
                 }
+                send(PING);
+                pinged = true;
             }
+        }
+    }
 
-        } catch (IOException | InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+    /**
+     * 打印收到的完整消息，回复服务器的心跳，不完整的消息留在line中等下一次读
+     */
+    private void receive(StringBuilder line) {
+        int start = 0;
+        int end;
+        while ((end = line.indexOf("\n", start)) >= 0) {
+            String msg = line.substring(start, end);
+            start = end + 1;
+            if (PING.equals(msg)) {
+                send(PONG);
+            } else if (!PONG.equals(msg)) {
+                System.out.println(msg);
+            }
         }
+        line.delete(0, start);
     }
 
-    public void send(String msg) {
+    /**
+     * UserInputHandler调用，断线期间输入的消息会被丢弃
+     * 读线程回复心跳时也会调用，同一时间只能有一个write
+     */
+    public synchronized void send(String msg) {
         if (msg.isEmpty()) {
             return;
         }
+        if (readyToQuit(msg)) {
+            quit = true;
+        }
+        AsynchronousSocketChannel channel = clientChannel;
+        if (channel == null) {
+            System.out.println("正在重连服务器，消息没有发送");
+            return;
+        }
 
         ByteBuffer buffer = charset.encode(msg);
         // Integer类型的Future对象获得未来返回的结果
-        Future<Integer> writeResult = clientChannel.write(buffer);
+        Future<Integer> writeResult = channel.write(buffer);
         try {
             writeResult.get();
         } catch (InterruptedException| ExecutionException e) {
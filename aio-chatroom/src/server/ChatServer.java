@@ -1,34 +1,105 @@
 package server;
 
+import buffer.BufferPool;
+import buffer.ReadSizeEstimator;
+import history.RecentHistory;
+import logging.AsyncLogger;
+import logging.Level;
+import ratelimit.TokenBucket;
+import session.IdlePolicy;
+import session.UserIndex;
+import timer.HashedWheelTimer;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ChatServer {
 
     private static final String LOCALHOST = "localhost";
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
+    private static final byte[] QUIT = "quit".getBytes(StandardCharsets.UTF_8);
+    // 以/开头的消息是命令，比如 /join 房间名，只比较第一个字节
+    private static final byte COMMAND_PREFIX = '/';
+    private static final byte NEWLINE = '\n';
+    // 读缓冲区第一次借的大小和最小、最大的大小，之后按最近读到的字节数调整
     private static final int BUFFER = 1024;
-    private static final int THREADPOOL_SIZE = 8;
+    private static final int MIN_BUFFER = 256;
+    private static final int MAX_BUFFER = 64 * 1024;
+    // accept失败(比如文件描述符用完)后多久重试，立即重试只会一直失败
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    // 一次gathering write最多写出的消息数量
+    private static final int MAX_GATHER = 64;
+    // 每个房间在内存中保留的最近消息条数和字节数，加入房间时发给新成员
+    private static final int RECENT_MESSAGES = 50;
+    private static final int RECENT_BYTES = 64 * 1024;
+    // 时间轮每个tick的长度和桶数
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 512;
+    // 心跳消息，客户端收到后回复PONG
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
 
     // 使用自定义的AsynchronousChannelGroup，这样就相当于
     // 自定义了线程池，不再使用系统默认的线程池
     private AsynchronousChannelGroup channelGroup;
+    // 通道组的类型(fixed、cached、cores)和线程数，通过-Dchat.aio.group和-Dchat.aio.threads设置
+    private final String groupType = System.getProperty("chat.aio.group", "cores");
+    private final int groupThreads = Integer.getInteger("chat.aio.threads", Runtime.getRuntime().availableProcessors());
+    // 监听socket的backlog，连接突发时内核中排队等待accept的连接数，通过-Dchat.backlog设置
+    private final int backlog = Integer.getInteger("chat.backlog", 4096);
     private AsynchronousServerSocketChannel serverChannel;
-    private List<ClientHandler> connectedClients;
+    // 并发的Set，加入和离开不需要加锁
+    private Set<ClientHandler> connectedClients;
+    // 房间注册表，转发消息只遍历同一房间的成员
+    private RoomRegistry<ClientHandler> rooms = new RoomRegistry<>();
+    // 用户ID到客户端的索引，私聊时直接查找
+    private UserIndex<ClientHandler> users = new UserIndex<>();
+    // 每个房间最近的消息，房间没人时也保留，空闲超时后释放；只加入不发消息的房间没有
+    private ConcurrentMap<String, RecentRoom> recent = new ConcurrentHashMap<>();
+    // 最多保留多少个房间的最近消息，超过后新房间的消息照常转发但不保留，通过-Dchat.maxRooms设置
+    private final int maxRooms = Integer.getInteger("chat.maxRooms", 10_000);
+    // 没有成员的房间多久没有消息后释放它的最近消息，0表示一直保留，通过-Dchat.roomIdleTimeout设置，单位毫秒
+    private final long roomIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.roomIdleTimeout", 600_000));
     private Charset charset = Charset.forName("UTF-8");
+    // 读缓冲区每次发起read时从缓冲区池借出，读完成后立即归还
+    private BufferPool bufferPool = BufferPool.getDefault();
+    // 回调运行在通道组的线程上，不能直接写控制台，日志由后台线程批量写出
+    private AsyncLogger logger = AsyncLogger.getDefault();
+    // 所有连接的空闲检查共用一个时间轮线程，对方崩溃或者网络断开时挂起的read永远不会完成
+    private HashedWheelTimer timer = new HashedWheelTimer(TICK_NANOS, WHEEL_SIZE, "idle-timer");
+    // 多久没有收到数据时发送心跳，多久没有收到数据时断开，0表示不发送/不断开
+    // 通过-Dchat.heartbeat和-Dchat.idleTimeout设置，单位毫秒
+    private final IdlePolicy idlePolicy = new IdlePolicy(
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.heartbeat", 30_000)),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idleTimeout", 90_000)));
+    // 每个连接每秒最多发送的消息数和字节数，0表示不限制，令牌桶的容量是两秒的量
+    // 通过-Dchat.maxMessagesPerSecond和-Dchat.maxBytesPerSecond设置
+    private final long maxMessagesPerSecond = Long.getLong("chat.maxMessagesPerSecond", 100);
+    private final long maxBytesPerSecond = Long.getLong("chat.maxBytesPerSecond", 256 * 1024);
+    // 中继模式：按客户端发来的字节原样转发，不解码成字符串再编码，-Dchat.relay=false关闭
+    private final boolean relay = Boolean.parseBoolean(System.getProperty("chat.relay", "true"));
     private int port;
 
     public ChatServer() {
@@ -37,11 +108,15 @@ public class ChatServer {
 
     public ChatServer(int port) {
         this.port = port;
-        this.connectedClients = new ArrayList<>();
+        this.connectedClients = ConcurrentHashMap.newKeySet();
     }
 
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    /**
+     * 直接比较读到的字节，不需要解码
+     * @param buffer 读模式的buffer
+     */
+    private boolean readyToQuit(ByteBuffer buffer) {
+        return buffer.remaining() == QUIT.length && buffer.duplicate().equals(ByteBuffer.wrap(QUIT));
     }
 
     private void close(Closeable closable) {
@@ -56,32 +131,84 @@ public class ChatServer {
 
     private void start() {
         try {
-            // 创建固定数量的线程池
-            ExecutorService executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
-            // 将自定义的线程池传入AsynchronousChannelGroup
-            channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
+            channelGroup = createChannelGroup();
             // 获得serverChannel，并绑定端口信息
             serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
-            System.out.println("启动服务器，监听端口：" + port);
-
-            // accept异步，System.in.read()等待结果返回
-            while (true) {
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
+            serverChannel.bind(new InetSocketAddress(LOCALHOST, port), backlog);
+            System.out.println("启动服务器，监听端口：" + port + "，通道组：" + groupType);
+            timer.start();
+            if (roomIdleTimeoutNanos > 0) {
+                timer.schedule(this::releaseIdleRooms, roomIdleTimeoutNanos, TimeUnit.NANOSECONDS);
             }
+
+            // 只发起一次accept，之后每次accept完成时由回调发起下一次，不需要主线程参与
+            serverChannel.accept(null, new AcceptHandler());
+            // 主线程只等待通道组关闭，不依赖控制台输入，可以作为后台服务运行
+            channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            close(serverChannel);
+            shutdown();
         }
     }
 
+    /**
+     * 按-Dchat.aio.group创建通道组：
+     *  fixed —— 固定chat.aio.threads个线程，每个线程既等待I/O事件也执行回调
+     *  cached —— 回调交给按需创建线程的线程池，连接突发时线程数会上涨，空闲后回收
+     *  cores —— 和fixed相同，线程数等于CPU核数(默认)
+     * 回调都不能阻塞，否则会占住等待I/O事件的线程
+     */
+    private AsynchronousChannelGroup createChannelGroup() throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> new Thread(r, "aio-" + count.getAndIncrement());
+        switch (groupType) {
+            case "fixed":
+                return AsynchronousChannelGroup.withFixedThreadPool(groupThreads, factory);
+            case "cached":
+                return AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(factory),
+                        groupThreads);
+            case "cores":
+                return AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        factory);
+            default:
+                throw new IllegalArgumentException("未知的通道组类型：" + groupType);
+        }
+    }
+
+    /**
+     * 停止accept并关闭所有连接，可以重复调用，也可以由其他线程调用
+     */
+    public void shutdown() {
+        close(serverChannel);
+        if (channelGroup != null) {
+            try {
+                channelGroup.shutdownNow();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        timer.close();
+    }
+
     public static void main(String[] args) {
         ChatServer server = new ChatServer(7777);
+        // kill或者Ctrl+C时关闭通道组，start中等待的主线程随之退出
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "shutdown"));
         server.start();
     }
 
+    /**
+     * 一个房间的最近消息，以及最后一次有消息的时间
+     */
+    private static class RecentRoom {
+        // 环形缓冲区在第一条消息时才分配
+        final RecentHistory history = new RecentHistory(RECENT_MESSAGES, RECENT_BYTES);
+        volatile long lastUsed = System.nanoTime();
+    }
+
     /**
      * AsynchronousSocketChannel是连接后创建的
      * attachment是Object类型
@@ -89,37 +216,89 @@ public class ChatServer {
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
         @Override
         public void completed(AsynchronousSocketChannel clientChannel, Object attachment) {
-            // 因为有多个客户端，所以要继续接收连接(如果serverChannel开放)
-            if (serverChannel.isOpen()) {
-                serverChannel.accept(null, this);
-            }
+            // 因为有多个客户端，所以要继续接收连接，先发起下一次accept再处理这个连接
+            acceptNext();
             if (clientChannel != null && clientChannel.isOpen()) {
                 // 因为ClientHandler的read方法是异步的
                 // 所以要么用一个Future对象来获取未来返回的对象
                 // 要么实现Completion接口
                 ClientHandler handler = new ClientHandler(clientChannel);
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
                 // 将新用户添加到在线用户列表
                 addClient(handler);
-                clientChannel.read(buffer, buffer, handler);
+                handler.read();
             }
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("连接失败：" + exc);
+            if (exc instanceof AsynchronousCloseException || !serverChannel.isOpen()) {
+                // 服务器关闭
+                return;
+            }
+            logger.warn("连接失败：" + exc);
+            // 不能在回调中sleep，交给时间轮稍后重新accept
+            timer.schedule(this::acceptNext, ACCEPT_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void acceptNext() {
+            if (serverChannel.isOpen()) {
+                serverChannel.accept(null, this);
+            }
         }
     }
 
-    private synchronized void addClient(ClientHandler handler) {
+    private void addClient(ClientHandler handler) {
         connectedClients.add(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已连接到服务器");
+        scheduleIdleCheck(handler, handler.lastReadNanos);
+        // 新连接默认进入大厅
+        handler.join(RoomRegistry.LOBBY);
+        logger.info(getClientName(handler.clientChannel) + "已连接到服务器");
     }
 
-    private synchronized void removeClient(ClientHandler handler) {
-        connectedClients.remove(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已断开连接");
-        close(handler.clientChannel);
+    private void removeClient(ClientHandler handler) {
+        if (connectedClients.remove(handler)) {
+            rooms.leave(handler, handler.room);
+            users.logout(handler.userId, handler);
+            logger.info(getClientName(handler.clientChannel) + "已断开连接");
+            close(handler.clientChannel);
+            // 挂起的read随着channel关闭而失败，不会再写入这个缓冲区
+            bufferPool.release(handler.rBuffer.getAndSet(null));
+        }
+    }
+
+    /**
+     * 在时间轮中安排下一次空闲检查，在最早可能需要发心跳或者断开的时间
+     * 读完成时只更新最后读的时间，检查时发现没有空闲就按最后读的时间重新安排
+     * @param lastRead 检查时看到的最后读的时间
+     */
+    private void scheduleIdleCheck(ClientHandler handler, long lastRead) {
+        long now = System.nanoTime();
+        long deadline = idlePolicy.nextCheck(lastRead, handler.pingedFor == lastRead, now);
+        if (deadline != Long.MAX_VALUE) {
+            timer.schedule(() -> checkIdle(handler), deadline - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 时间轮线程中执行：空闲超过idleTimeout时断开，超过心跳间隔时发送一次心跳
+     */
+    private void checkIdle(ClientHandler handler) {
+        if (!connectedClients.contains(handler)) {
+            return;
+        }
+        long lastRead = handler.lastReadNanos;
+        IdlePolicy.Action action = idlePolicy.check(lastRead, handler.pingedFor == lastRead, System.nanoTime());
+        if (action == IdlePolicy.Action.CLOSE) {
+            logger.info(getClientName(handler.clientChannel) + "空闲超时");
+            // 关闭channel后挂起的read失败，不会再有回调
+            removeClient(handler);
+            return;
+        }
+        if (action == IdlePolicy.Action.PING) {
+            reply(handler, PING);
+            handler.pingedFor = lastRead;
+        }
+        scheduleIdleCheck(handler, lastRead);
     }
 
     /**
@@ -130,65 +309,356 @@ public class ChatServer {
     private class ClientHandler implements CompletionHandler<Integer, Object> {
 
         private AsynchronousSocketChannel clientChannel;
+        // 挂起的read正在使用的读缓冲区，没有挂起的read时为null
+        // 读完成和removeClient都可能归还它，谁先取走谁归还
+        private final AtomicReference<ByteBuffer> rBuffer = new AtomicReference<>();
+        // 决定下一次read借多大的读缓冲区
+        private final ReadSizeEstimator readSize = new ReadSizeEstimator(MIN_BUFFER, BUFFER, MAX_BUFFER);
+        // 当前所在的房间，同一时间只在一个房间中
+        private volatile Room<ClientHandler> room;
+        // 待发送的消息，任何线程都可以放入，只有正在写的那个回调取出(多生产者单消费者)
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        // 同一时间只能有一个write在进行，否则会抛出WritePendingException
+        private final AtomicBoolean writing = new AtomicBoolean();
+        // 正在写的消息，只有持有writing的线程访问
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private int gatherCount;
+        private final WriteHandler writeHandler = new WriteHandler();
+        // 登录的用户ID，没有登录时为null
+        private volatile String userId;
+        // UTF-8编码的"发送者名称:"，转发时直接放在正文前面，登录后换成用户ID
+        private volatile byte[] senderPrefix;
+        // 最后一次收到数据的时间(System.nanoTime)，读回调更新，时间轮线程检查
+        private volatile long lastReadNanos = System.nanoTime();
+        // 发心跳时的最后读的时间，和lastReadNanos相同说明这次空闲期间已经发过心跳，只由时间轮线程访问
+        private long pingedFor = Long.MIN_VALUE;
+        // 每秒消息数和字节数的令牌桶，不限制时为null，只在读完成的回调中访问，同一时间只有一个read
+        private final TokenBucket messageBucket;
+        private final TokenBucket byteBucket;
 
         public ClientHandler(AsynchronousSocketChannel channel) {
             this.clientChannel = channel;
+            this.senderPrefix = (getClientName(channel) + ":").getBytes(StandardCharsets.UTF_8);
+            long now = System.nanoTime();
+            this.messageBucket = maxMessagesPerSecond <= 0 ? null
+                    : new TokenBucket(maxMessagesPerSecond, 2 * maxMessagesPerSecond, now);
+            this.byteBucket = maxBytesPerSecond <= 0 ? null
+                    : new TokenBucket(maxBytesPerSecond, 2 * maxBytesPerSecond, now);
+        }
+
+        /**
+         * 按最近读到的字节数借一个读缓冲区，发起read
+         * AIO的read必须先给出缓冲区，所以挂起的read总要占一个，但不会超过最近需要的大小
+         */
+        private void read() {
+            ByteBuffer buffer = bufferPool.acquire(readSize.next());
+            rBuffer.set(buffer);
+            if (!connectedClients.contains(this)) {
+                // 已经断开，removeClient可能没有看到这个缓冲区
+                bufferPool.release(rBuffer.getAndSet(null));
+                return;
+            }
+            clientChannel.read(buffer, buffer, this);
+        }
+
+        /**
+         * 按这次读到的消息计费后发起下一次read，超过限制时先不发起，等令牌补充上再由时间轮线程发起
+         * 没有挂起的read时数据留在内核中，TCP窗口变为0后发送方被迫停下，服务器不需要缓存，也不占用读缓冲区
+         * @param bytes 这次读到的字节数
+         */
+        private void readNext(int bytes) {
+            long now = System.nanoTime();
+            long delay = 0;
+            if (messageBucket != null) {
+                delay = messageBucket.consume(1, now);
+            }
+            if (byteBucket != null) {
+                delay = Math.max(delay, byteBucket.consume(bytes, now));
+            }
+            if (delay == 0) {
+                read();
+            } else {
+                // 等待期间连接可能已经断开，read中会检查
+                timer.schedule(this::read, delay, TimeUnit.NANOSECONDS);
+            }
         }
 
         /**
-         *
+         * 读完成的回调，写完成由WriteHandler处理
          * @param result 返回的字节数
          * @param attachment read方法的第二个参数——buffer
          */
         @Override
         public void completed(Integer result, Object attachment) {
             ByteBuffer buffer = (ByteBuffer) attachment;
-            // buffer为空时为写操作，否则为读操作
-            if (buffer != null) {
-                if (result <= 0) {
-                    // 客户端异常
-                    // 将客户移除出在线客户列表
-                    removeClient(this);
-                } else {
-                    // 从读取读取信息并打印和转发给其他客户
-                    buffer.flip();
-                    String fwdMsg = receive(buffer);
-                    System.out.println(getClientName(clientChannel) + ":" + fwdMsg);
-                    forwardMessage(clientChannel, fwdMsg);
-                    buffer.clear();
-
-                    // 检查用户是否退出
-                    if (readyToQuit(fwdMsg)) {
-                        removeClient(this);
-                    } else {
-                        clientChannel.read(buffer, buffer, this);
+            // 取回读缓冲区，已经被removeClient取走说明连接已经关闭
+            if (buffer == null || !rBuffer.compareAndSet(buffer, null)) {
+                return;
+            }
+            if (result <= 0) {
+                // 客户端异常
+                // 将客户移除出在线客户列表
+                bufferPool.release(buffer);
+                removeClient(this);
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            readSize.record(result, buffer.capacity());
+            // 从读取读取信息并打印和转发给其他客户
+            buffer.flip();
+            boolean quit = false;
+            if (buffer.get(0) == COMMAND_PREFIX) {
+                // 命令不转发
+                handleCommand(this, receive(buffer));
+            } else {
+                if (logger.sampled(Level.INFO)) {
+                    logger.info(getClientName(clientChannel) + "@" + room.getId() + ":" + receive(buffer.duplicate()));
+                }
+                forwardMessage(this, buffer);
+                quit = readyToQuit(buffer);
+            }
+            // 消息已经复制出去了，读缓冲区不用等到下一次数据到达
+            bufferPool.release(buffer);
+
+            // 检查用户是否退出
+            if (quit) {
+                removeClient(this);
+            } else {
+                readNext(result);
+            }
+        }
+
+        /**
+         * 把消息放入发送队列，没有正在进行的write时开始写
+         * 可以被任何线程调用，不会阻塞
+         * @param buffer 读模式的消息，入队后不能再修改
+         */
+        private void send(ByteBuffer buffer) {
+            outbound.offer(buffer);
+            if (writing.compareAndSet(false, true)) {
+                writeNext();
+            }
+        }
+
+        /**
+         * 持有writing时调用：把上次没写完的消息和队列里的消息一起写出
+         * 没有可写的消息时释放writing
+         */
+        private void writeNext() {
+            while (true) {
+                ByteBuffer buffer;
+                while (gatherCount < gather.length && (buffer = outbound.poll()) != null) {
+                    gather[gatherCount++] = buffer;
+                }
+                if (gatherCount > 0) {
+                    try {
+                        clientChannel.write(gather, 0, gatherCount, 0L, TimeUnit.MILLISECONDS,
+                                null, writeHandler);
+                    } catch (Exception e) {
+                        // 连接已经关闭
+                        writeHandler.failed(e, null);
                     }
+                    return;
+                }
+                writing.set(false);
+                // 释放writing之前别的线程可能刚好放入了消息，它抢不到writing，所以这里要再检查一次
+                if (outbound.isEmpty() || !writing.compareAndSet(false, true)) {
+                    return;
                 }
             }
         }
 
+        /**
+         * 离开当前房间，加入新房间
+         */
+        private void join(String roomId) {
+            rooms.leave(this, room);
+            room = rooms.join(this, roomId);
+            // 最近的消息已经是编码好的，复制一次就可以和其他消息一起gathering write
+            RecentRoom recentRoom = recent.get(roomId);
+            ByteBuffer backlog = recentRoom == null ? null : recentRoom.history.copy();
+            if (backlog != null) {
+                send(backlog);
+            }
+        }
+
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("读写失败：" + exc);
+            logger.warn("读写失败：" + exc);
+            // 读失败说明连接已经不可用
+            if (attachment != null) {
+                if (rBuffer.compareAndSet((ByteBuffer) attachment, null)) {
+                    bufferPool.release((ByteBuffer) attachment);
+                }
+                removeClient(this);
+            }
+        }
+
+        /**
+         * 一次gathering write完成后，去掉写完的消息，继续写下一批
+         */
+        private class WriteHandler implements CompletionHandler<Long, Object> {
+            @Override
+            public void completed(Long result, Object attachment) {
+                int remaining = 0;
+                for (int i = 0; i < gatherCount; i++) {
+                    if (gather[i].hasRemaining()) {
+                        gather[remaining++] = gather[i];
+                    }
+                }
+                Arrays.fill(gather, remaining, gatherCount, null);
+                gatherCount = remaining;
+                writeNext();
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                // 写失败说明连接已经不可用，丢弃没发出去的消息，不再释放writing
+                Arrays.fill(gather, 0, gatherCount, null);
+                gatherCount = 0;
+                outbound.clear();
+                if (connectedClients.contains(ClientHandler.this)) {
+                    logger.warn("写失败：" + exc);
+                    removeClient(ClientHandler.this);
+                }
+            }
         }
     }
 
     /**
-     * 因为是多线程，所以加入synchronized
-     * @param clientChannel
-     * @param fwdMsg
+     * 处理命令：
+     *  /join 房间名 —— 离开当前房间，加入新房间
+     *  /leave —— 回到大厅
+     *  /login 用户ID —— 登录，之后别人可以通过用户ID私聊
+     *  /msg 用户ID 消息 —— 私聊
+     *  /ping —— 心跳，回复/pong
+     * @param handler 发出命令的客户端
+     * @param command 命令
      */
-    private synchronized void forwardMessage(AsynchronousSocketChannel clientChannel, String fwdMsg) {
-        for (ClientHandler handler : connectedClients) {
-            if (!clientChannel.equals(handler.clientChannel)) {
-                try {
-                    ByteBuffer buffer = charset.encode(getClientName(handler.clientChannel) + ":" + fwdMsg);
-                    // 同read方法，异步调用。第二个参数attachment是null，因为不用作处理
-                    handler.clientChannel.write(buffer, null, handler);
-                } catch (Exception e) {
-                    // 对每个handler异常处理，这样就能分清哪个socketChannel转发错误
-                    e.printStackTrace();
+    private void handleCommand(ClientHandler handler, String command) {
+        String[] parts = command.trim().split("\\s+", 2);
+        switch (parts[0]) {
+            case "/join":
+                if (parts.length < 2) {
+                    reply(handler, "用法：/join 房间名");
+                } else {
+                    handler.join(parts[1]);
+                    reply(handler, "已加入房间" + parts[1]);
+                }
+                break;
+            case "/leave":
+                handler.join(RoomRegistry.LOBBY);
+                reply(handler, "已回到" + RoomRegistry.LOBBY);
+                break;
+            case "/login":
+                login(handler, parts.length < 2 ? null : parts[1]);
+                break;
+            case PING:
+                reply(handler, PONG);
+                break;
+            case PONG:
+                // 读完成时已经更新了最后读的时间
+                break;
+            case "/msg":
+                String[] args = parts.length < 2 ? new String[0] : parts[1].split("\\s+", 2);
+                if (args.length < 2) {
+                    reply(handler, "用法：/msg 用户ID 消息");
+                } else {
+                    sendPrivate(handler, args[0], args[1]);
                 }
+                break;
+            default:
+                reply(handler, "未知命令：" + parts[0]);
+        }
+    }
+
+    private void login(ClientHandler handler, String userId) {
+        if (!UserIndex.isValidUserId(userId)) {
+            reply(handler, "用法：/login 用户ID");
+        } else if (!users.login(userId, handler)) {
+            reply(handler, "用户ID" + userId + "已被占用");
+        } else {
+            // 换了用户ID，释放原来的
+            if (handler.userId != null && !handler.userId.equals(userId)) {
+                users.logout(handler.userId, handler);
+            }
+            handler.userId = userId;
+            handler.senderPrefix = (userId + ":").getBytes(StandardCharsets.UTF_8);
+            reply(handler, "登录成功：" + userId);
+        }
+    }
+
+    /**
+     * 私聊：一次索引查找 + 一次写，不需要遍历在线列表
+     */
+    private void sendPrivate(ClientHandler sender, String userId, String text) {
+        ClientHandler target = users.lookup(userId);
+        if (target == null) {
+            reply(sender, "用户" + userId + "不在线");
+        } else {
+            reply(target, "[私聊]" + getSenderName(sender) + ":" + text);
+        }
+    }
+
+    /**
+     * 登录后用用户ID作为名称
+     */
+    private String getSenderName(ClientHandler handler) {
+        return handler.userId != null ? handler.userId : getClientName(handler.clientChannel);
+    }
+
+    /**
+     * 给客户端发送一条系统通知
+     */
+    private void reply(ClientHandler handler, String text) {
+        handler.send(charset.encode(text + "\n"));
+    }
+
+    /**
+     * 房间的最近消息，第一次有消息时创建
+     * @return 房间数量已经达到maxRooms时返回null
+     */
+    private RecentRoom getRecent(String roomId) {
+        RecentRoom recentRoom = recent.get(roomId);
+        if (recentRoom == null && recent.size() < maxRooms) {
+            recentRoom = recent.computeIfAbsent(roomId, id -> new RecentRoom());
+        }
+        return recentRoom;
+    }
+
+    /**
+     * 释放没有成员、并且超过roomIdleTimeout没有消息的房间的最近消息，在时间轮线程中定期执行
+     * 和加入房间并发时，新成员最多拿到一份即将释放的最近消息，不影响之后的消息
+     */
+    private void releaseIdleRooms() {
+        long now = System.nanoTime();
+        recent.entrySet().removeIf(entry -> now - entry.getValue().lastUsed >= roomIdleTimeoutNanos
+                && rooms.get(entry.getKey()) == null);
+        timer.schedule(this::releaseIdleRooms, roomIdleTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 只遍历发送者所在房间的成员，消息只编码一次，每个接收者一个只读视图
+     * 只是放入每个客户端的发送队列，不需要加锁，同时记入房间最近的消息
+     * 中继模式下正文按读到的字节原样复制，转发路径上没有String；
+     * 否则解码再编码，非法的UTF-8会被替换掉
+     * @param sender 消息源客户端
+     * @param msg 读模式的转发消息，不改变它的position
+     */
+    private void forwardMessage(ClientHandler sender, ByteBuffer msg) {
+        ByteBuffer text = relay ? msg.duplicate() : charset.encode(receive(msg.duplicate()));
+        byte[] prefix = sender.senderPrefix;
+        // 每条消息一行，连续的消息和最近的消息放在一起发送时也能分开
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + text.remaining() + 1);
+        buffer.put(prefix).put(text).put(NEWLINE).flip();
+        RecentRoom recentRoom = getRecent(sender.room.getId());
+        if (recentRoom != null) {
+            recentRoom.lastUsed = System.nanoTime();
+            recentRoom.history.append(buffer);
+        }
+        for (ClientHandler handler : sender.room.members()) {
+            if (handler != sender) {
+                handler.send(buffer.asReadOnlyBuffer());
             }
         }
     }
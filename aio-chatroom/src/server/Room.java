@@ -0,0 +1,39 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 聊天室房间，转发消息时只遍历房间成员
+ * @param <M> 成员类型
+ */
+class Room<M> {
+
+    private final String id;
+    // 完成回调在线程池的多个线程中执行，所以使用并发集合
+    private final Set<M> members = ConcurrentHashMap.newKeySet();
+
+    Room(String id) {
+        this.id = id;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    void add(M member) {
+        members.add(member);
+    }
+
+    void remove(M member) {
+        members.remove(member);
+    }
+
+    Set<M> members() {
+        return members;
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 房间ID到房间的映射
+ * 加入和离开都通过ConcurrentHashMap的compute完成，和"空房间删除"是原子的
+ * @param <M> 成员类型
+ */
+class RoomRegistry<M> {
+
+    // 新连接默认进入的房间
+    static final String LOBBY = "lobby";
+
+    private final ConcurrentMap<String, Room<M>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 加入房间，房间不存在时自动创建
+     */
+    Room<M> join(M member, String roomId) {
+        return rooms.compute(roomId, (id, existing) -> {
+            Room<M> room = existing != null ? existing : new Room<>(id);
+            room.add(member);
+            return room;
+        });
+    }
+
+    /**
+     * 离开房间，房间空了就删除
+     */
+    void leave(M member, Room<M> room) {
+        if (room == null) {
+            return;
+        }
+        rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            existing.remove(member);
+            return existing.isEmpty() ? null : existing;
+        });
+    }
+
+    /**
+     * @return 房间，没有成员时返回null
+     */
+    Room<M> get(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    int size() {
+        return rooms.size();
+    }
+}
@@ -1,3 +1,5 @@
+import buffer.BufferPool;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -12,7 +14,10 @@ public class Server {
 
     final String LOCALHOST = "localhost";
     final int DEFAULT_PORT = 8888;
+    final int BUFFER = 1024;
     AsynchronousServerSocketChannel serverChannel;
+    // 读写共用的buffer从缓冲区池借出，连接断开时归还
+    BufferPool bufferPool = BufferPool.getDefault();
 
 
     /**
@@ -80,7 +85,7 @@ public class Server {
                 // 客户端处理进程——负责处理读写操作
                 ClientHandler handler = new ClientHandler(clientChannel);
 
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                ByteBuffer buffer = bufferPool.acquire(BUFFER);
                 // 试验attachment，Map负责读操作
                 Map<String, Object> info = new HashMap<>();
                 info.put("type", "read");
@@ -123,19 +128,27 @@ public class Server {
             // Map中只有两个键值对，不断地被覆写
             // 这是一个简易echo服务器，所以目的是将客户端发来的数据传回去
             // 只需要改变buffer的状态就可以了(读换成写)
+            ByteBuffer buffer = (ByteBuffer) info.get("buffer");
             if ("read".equals(type)) {
+                if (result < 0) {
+                    // 客户端断开，归还buffer
+                    bufferPool.release(buffer);
+                    close(clientChannel);
+                    return;
+                }
                 // 服务器端从客户端中读取数据，完成后改为写入状态
-                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
                 buffer.flip();
                 info.put("type", "write");
                 clientChannel.write(buffer, info, this);
-                buffer.clear();
             } else if ("write".equals(type)) {
-                // 服务器要求客户端中写入数据，所以创建新的buffer，重新调用read
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-
+                if (buffer.hasRemaining()) {
+                    // 没有写完，继续写
+                    clientChannel.write(buffer, info, this);
+                    return;
+                }
+                // 写完之后复用同一个buffer，重新调用read
+                buffer.clear();
                 info.put("type", "read");
-                info.put("buffer", buffer);
 
                 clientChannel.read(buffer, info, this);
             }
@@ -143,7 +156,10 @@ public class Server {
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            // 处理错误
+            // 处理错误，归还buffer
+            Map<String, Object> info = (Map<String, Object>) attachment;
+            bufferPool.release((ByteBuffer) info.get("buffer"));
+            close(clientChannel);
         }
     }
 
@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * 聊天室客户端
@@ -14,29 +15,67 @@ public class ChatClient {
     private final Integer DEFAULT_SERVER_PORT = 8888;
     private final String QUIT_MSG = "quit";
 
+    // 重连的等待时间从MIN_BACKOFF开始每次翻倍，最多MAX_BACKOFF
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30_000;
+    // 多久没有收到服务器的数据时发送心跳，发送后再过这么久还没有收到数据就认为连接已经断开
+    private static final int HEARTBEAT = 30_000;
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
+
     private Socket socket;
     private BufferedReader reader;
-    private BufferedWriter writer;
+    // 断线期间为null
+    private volatile BufferedWriter writer;
+    private volatile boolean quit;
 
     /**
-     * 发送消息给服务器
+     * 发送消息给服务器，断线期间的消息会被丢弃
      * @param msg 字符串消息
      * @throws IOException 异常
      */
     public void send(String msg) throws IOException {
+        if (readyToQuit(msg)) {
+            quit = true;
+        }
+        BufferedWriter writer = this.writer;
+        if (writer == null) {
+            System.out.println("正在重连服务器，消息没有发送");
+            return;
+        }
         if (!socket.isInputShutdown()) {
             writer.write(msg + "\n");
             writer.flush();
         }
     }
 
-    // 从服务器端接收消息
+    /**
+     * 从服务器端接收消息，回复服务器的心跳
+     * 服务器一段时间没有发来数据时发送一次心跳，仍然没有回复说明服务器已经崩溃或者网络已经断开，
+     * 这种情况下TCP连接收不到FIN，只能靠心跳发现
+     */
     public String receive() throws IOException {
-        String msg = null;
-        if (!socket.isInputShutdown()) {
-            msg = reader.readLine();
+        boolean pinged = false;
+        while (!socket.isInputShutdown()) {
+            String msg;
+            try {
+                msg = reader.readLine();
+            } catch (SocketTimeoutException e) {
+                if (pinged) {
+                    throw new IOException("服务器" + 2 * HEARTBEAT + "毫秒没有响应");
+                }
+                send(PING);
+                pinged = true;
+                continue;
+            }
+            pinged = false;
+            if (PING.equals(msg)) {
+                send(PONG);
+            } else if (!PONG.equals(msg)) {
+                return msg;
+            }
         }
-        return msg;
+        return null;
     }
 
     // 检查用户是否准备退出
@@ -45,6 +84,8 @@ public class ChatClient {
     }
 
     public void close() {
+        BufferedWriter writer = this.writer;
+        this.writer = null;
         if (writer != null) {
             try {
                 System.out.println("关闭socket");
@@ -55,20 +96,49 @@ public class ChatClient {
         }
     }
 
-    // 启动
+    // 启动，断线后按指数退避自动重连
     public void start() {
+        // 处理用户的输入，多线程，重连时不需要重新启动
+        new Thread(new UserInputHandler(this)).start();
+        long backoff = MIN_BACKOFF;
+        while (!quit) {
+            if (connect()) {
+                backoff = MIN_BACKOFF;
+            }
+            if (quit) {
+                break;
+            }
+            // 文本协议没有消息序号，重连后需要重新登录
+            System.out.println("与服务器的连接已断开，" + backoff + "毫秒后重连");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * 连接服务器并处理转发的消息，直到连接断开
+     * @return 是否连接成功过
+     */
+    private boolean connect() {
         // 创建Socket对象
         try {
             // 主逻辑函数，所以在函数内try catch，不是在函数外
             socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
-
+        } catch (IOException e) {
+            System.out.println("连接服务器失败：" + e.getMessage());
+            return false;
+        }
+        try {
             // 创建IO流
+            socket.setSoTimeout(HEARTBEAT);
             reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 
-            // 处理用户的输入，多线程
-            new Thread(new UserInputHandler(this)).start();
-
             // 处理服务器转发的消息
             String msg = null;
             while ((msg = receive()) != null) {
@@ -76,10 +146,13 @@ public class ChatClient {
             }
 
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!quit) {
+                e.printStackTrace();
+            }
         } finally {
             close();
         }
+        return true;
     }
 
     public static void main(String[] args) {
@@ -1,5 +1,9 @@
 package server;
 
+import logging.AsyncLogger;
+import logging.Level;
+import session.UserIndex;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -15,6 +19,14 @@ public class ChatHandler implements Runnable {
 
     private ChatServer chatServer;
     private Socket socket;
+    /**
+     * 登录的用户ID，没有登录时为null
+     */
+    private String userId;
+    /**
+     * 每条消息的日志放入异步日志的队列，不在读线程中写控制台
+     */
+    private AsyncLogger logger = AsyncLogger.getDefault();
 
     /**
      * @param chatServer 服务器端
@@ -32,9 +44,10 @@ public class ChatHandler implements Runnable {
      */
     @Override
     public void run() {
+        ClientSession session = null;
         try {
             // 存储新上线的客户
-            chatServer.addClient(socket);
+            session = chatServer.addClient(socket);
 
             // 读取用户发来的消息
             BufferedReader reader = new BufferedReader(
@@ -44,9 +57,25 @@ public class ChatHandler implements Runnable {
             String msg = null;
             // readLine函数等待输入，从而实现“客户端中聊天室”功能
             while ((msg = reader.readLine()) != null) {
-                // 包装信息，添加客户端端口等信息
-                String fwdMsg = "客户端[" + socket.getPort() + "]: " + msg;
-                System.out.println(fwdMsg);
+                // 任何数据都说明连接是活的，包括回复心跳的PONG
+                session.touch();
+                if (ChatServer.PONG.equals(msg)) {
+                    continue;
+                }
+                if (ChatServer.PING.equals(msg)) {
+                    chatServer.reply(socket, ChatServer.PONG + "\n");
+                    continue;
+                }
+                // 命令不转发
+                if (msg.startsWith("/login ") || msg.startsWith("/msg ")) {
+                    handleCommand(msg);
+                    continue;
+                }
+                // 包装信息，添加客户端名称等信息
+                String fwdMsg = getName() + ": " + msg;
+                if (logger.sampled(Level.INFO)) {
+                    logger.info(fwdMsg);
+                }
 
                 // 将消息转发给聊天室在线的其他用户
                 chatServer.forwardMsg(socket, fwdMsg + "\n");
@@ -57,13 +86,49 @@ public class ChatHandler implements Runnable {
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                chatServer.removeClient(socket);
-            } catch (IOException e) {
+            // 空闲超时关闭socket时readLine会抛出异常
+            if (session == null || !session.isClosed()) {
                 e.printStackTrace();
             }
+        } finally {
+            chatServer.logout(socket, userId);
+            chatServer.removeClient(socket);
+        }
+    }
+
+    /**
+     * 处理命令：
+     *  /login 用户ID —— 登录，之后别人可以通过用户ID私聊
+     *  /msg 用户ID 消息 —— 私聊
+     * @param command 命令
+     */
+    private void handleCommand(String command) {
+        String[] parts = command.trim().split("\\s+", 3);
+        if ("/login".equals(parts[0])) {
+            String newId = parts.length < 2 ? null : parts[1];
+            if (!UserIndex.isValidUserId(newId)) {
+                chatServer.reply(socket, "用法：/login 用户ID\n");
+            } else if (!chatServer.login(socket, newId)) {
+                chatServer.reply(socket, "用户ID" + newId + "已被占用\n");
+            } else {
+                // 换了用户ID，释放原来的
+                if (userId != null && !userId.equals(newId)) {
+                    chatServer.logout(socket, userId);
+                }
+                userId = newId;
+                chatServer.reply(socket, "登录成功：" + userId + "\n");
+            }
+        } else if (parts.length < 3) {
+            chatServer.reply(socket, "用法：/msg 用户ID 消息\n");
+        } else if (!chatServer.sendPrivate(parts[1], "[私聊]" + getName() + ": " + parts[2] + "\n")) {
+            chatServer.reply(socket, "用户" + parts[1] + "不在线\n");
         }
     }
+
+    /**
+     * 登录后用用户ID作为名称
+     */
+    private String getName() {
+        return userId != null ? userId : "客户端[" + socket.getPort() + "]";
+    }
 }
@@ -1,15 +1,19 @@
 package server;
 
-import java.io.BufferedWriter;
+import logging.AsyncLogger;
+import session.IdlePolicy;
+import session.UserIndex;
+import timer.HashedWheelTimer;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 聊天室服务器实现
@@ -19,82 +23,228 @@ public class ChatServer {
 
     private int DEFAULT_PORT = 8888;
     private final String QUIT_MSG = "quit";
+    private static final int THREADPOOL_SIZE = 10;
+    /**
+     * 时间轮每个tick的长度和桶数
+     */
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 512;
+    /**
+     * 心跳消息，客户端收到后回复PONG
+     */
+    public static final String PING = "/ping";
+    public static final String PONG = "/pong";
 
     /**
-     * 使用线程池实现伪异步IO模型
+     * 使用线程池实现伪异步IO模型，或者每个连接一个虚拟线程
      */
     private ExecutorService executorService;
+    private ExecutionMode mode;
+    /**
+     * 运行每个会话的写线程：VIRTUAL模式下和读线程一样用虚拟线程，
+     * FIXED模式下用可以增长的线程池，否则写线程会占满读线程的名额
+     */
+    private ExecutorService writerService;
 
     private ServerSocket serverSocket;
-    private Map<Integer, Writer> connectedClients;
+    /**
+     * 端口到客户端会话，并发的Map，加入、离开和转发都不需要加锁
+     */
+    private Map<Integer, ClientSession> connectedClients;
+    /**
+     * 用户ID到客户端会话的索引，私聊时直接查找，不用遍历
+     */
+    private UserIndex<ClientSession> users;
+    /**
+     * 连接和断开的日志由后台线程批量写出
+     */
+    private AsyncLogger logger = AsyncLogger.getDefault();
+    /**
+     * 所有连接的空闲检查共用一个时间轮线程，读线程阻塞在readLine中，自己发现不了对方已经死掉
+     */
+    private HashedWheelTimer timer = new HashedWheelTimer(TICK_NANOS, WHEEL_SIZE, "idle-timer");
+    /**
+     * 多久没有收到数据时发送心跳，多久没有收到数据时断开，0表示不发送/不断开
+     * 通过-Dchat.heartbeat和-Dchat.idleTimeout设置，单位毫秒
+     */
+    private final IdlePolicy idlePolicy = new IdlePolicy(
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.heartbeat", 30_000)),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idleTimeout", 90_000)));
 
     public ChatServer() {
-        /**
-         * 以前的同步IO模型，多少个用户就开多少个线程
-         * 这样十分浪费资源，使用线程池改进这个模型
-         * 限制10个线程，如果第11个用户请求连接，则
-         * 必须等待前10个线程中是否有一个释放，才能
-         * 使用，否则等待
-         */
-        executorService = Executors.newFixedThreadPool(10);
-        connectedClients = new HashMap<>();
+        this(ExecutionMode.FIXED);
+    }
+
+    /**
+     * @param mode 线程模型，VIRTUAL在当前JDK不支持时退回FIXED
+     */
+    public ChatServer(ExecutionMode mode) {
+        if (mode == ExecutionMode.VIRTUAL) {
+            executorService = newVirtualThreadExecutor();
+        }
+        if (executorService != null) {
+            this.mode = ExecutionMode.VIRTUAL;
+            writerService = executorService;
+        } else {
+            /**
+             * 以前的同步IO模型，多少个用户就开多少个线程
+             * 这样十分浪费资源，使用线程池改进这个模型
+             * 限制10个线程，如果第11个用户请求连接，则
+             * 必须等待前10个线程中是否有一个释放，才能
+             * 使用，否则等待
+             */
+            executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+            writerService = Executors.newCachedThreadPool();
+            this.mode = ExecutionMode.FIXED;
+        }
+        connectedClients = new ConcurrentHashMap<>();
+        users = new UserIndex<>();
+    }
+
+    /**
+     * 项目按JDK 11编译，所以通过反射调用JDK 21的Executors.newVirtualThreadPerTaskExecutor
+     * @return 每个任务一个虚拟线程的ExecutorService，不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 19/20没有开启预览特性时会抛出UnsupportedOperationException
+            System.out.println("当前JDK不支持虚拟线程，使用固定大小的线程池");
+            return null;
+        }
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
     }
 
     /**
      * 新的客户端加入到服务器中
-     * 注意：因为是多线程环境，map的put函数会造成
-     *      map的不正常状态，因为是简单的多人聊天室，
-     *      所以用最简单的synchronize方法，这样就只有
-     *      一个线程能调用这个函数
+     * connectedClients是ConcurrentHashMap，不需要加锁
      * @param socket 客户端对应的Socket
+     * @return 客户端会话，读线程收到数据时调用touch
      * @throws IOException IO异常
      */
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
-            connectedClients.put(port, writer);
-            System.out.println("客户端[" + port + "]已连接到服务器");
+    public ClientSession addClient(Socket socket) throws IOException {
+        int port = socket.getPort();
+        ClientSession session = new ClientSession(socket, writerService);
+        connectedClients.put(port, session);
+        scheduleIdleCheck(session, session.getLastReadNanos());
+        logger.info("客户端[" + port + "]已连接到服务器");
+        return session;
+    }
+
+    /**
+     * 在时间轮中安排下一次空闲检查，在最早可能需要发心跳或者断开的时间
+     * 读线程收到数据时只更新最后读的时间，检查时发现没有空闲就按最后读的时间重新安排
+     * @param lastRead 检查时看到的最后读的时间
+     */
+    private void scheduleIdleCheck(ClientSession session, long lastRead) {
+        long now = System.nanoTime();
+        long deadline = idlePolicy.nextCheck(lastRead, session.isPinged(lastRead), now);
+        if (deadline != Long.MAX_VALUE) {
+            timer.schedule(() -> checkIdle(session), deadline - now, TimeUnit.NANOSECONDS);
         }
     }
 
+    /**
+     * 时间轮线程中执行：空闲超过idleTimeout时断开，超过心跳间隔时发送一次心跳
+     */
+    private void checkIdle(ClientSession session) {
+        if (session.isClosed()) {
+            return;
+        }
+        long lastRead = session.getLastReadNanos();
+        IdlePolicy.Action action = idlePolicy.check(lastRead, session.isPinged(lastRead), System.nanoTime());
+        if (action == IdlePolicy.Action.CLOSE) {
+            logger.info("客户端[" + session.getPort() + "]空闲超时，已断开");
+            session.abort();
+            return;
+        }
+        if (action == IdlePolicy.Action.PING) {
+            session.send(PING + "\n");
+            session.setPinged(lastRead);
+        }
+        scheduleIdleCheck(session, lastRead);
+    }
+
     /**
      * 移除并关闭客户端
-     * 为了线程安全，同样添加synchronize关键字
+     * 会话的写线程发完已经入队的消息后关闭socket
      * @param socket 客户端Socket
-     * @throws IOException IO异常
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
+    public void removeClient(Socket socket) {
         if (socket != null) {
-            int port = socket.getPort();
-            // 同例子，先关闭writer(等于关闭socket)，后移出HashMap
-            if (connectedClients.containsKey(port)) {
-                connectedClients.get(port).close();
+            ClientSession session = connectedClients.remove(socket.getPort());
+            if (session != null) {
+                session.close();
+                logger.info("客户端[" + socket.getPort() + "]已断开连接");
             }
-            connectedClients.remove(port);
-            System.out.println("客户端[" + socket.getPort() + "]已断开连接");
         }
     }
 
     /**
      * 转发消息给其他的客户端
-     * 遍历HashMap
+     * 只是放入每个客户端的发送队列，不会被慢的客户端阻塞
      * @param socket 消息传送端口的Socket
      * @param fwdMsg   消息(字符串)
-     * @throws IOException  IO异常
-     */
-    public synchronized void forwardMsg(Socket socket, String fwdMsg) throws IOException {
-        for (Integer id : connectedClients.keySet()) {
-            if (!id.equals(socket.getPort())) {
-                Writer writer = connectedClients.get(id);
-                writer.write(fwdMsg);
-                writer.flush();
+     */
+    public void forwardMsg(Socket socket, String fwdMsg) {
+        for (ClientSession session : connectedClients.values()) {
+            if (session.getPort() != socket.getPort()) {
+                session.send(fwdMsg);
             }
         }
     }
 
+    /**
+     * 用户登录，把用户ID和客户端会话关联起来
+     * @param socket 客户端Socket
+     * @param userId 用户ID
+     * @return 用户ID是否可用
+     */
+    public boolean login(Socket socket, String userId) {
+        ClientSession session = connectedClients.get(socket.getPort());
+        return session != null && users.login(userId, session);
+    }
+
+    /**
+     * 用户登出，userId为null时什么也不做
+     * @param socket 客户端Socket
+     * @param userId 用户ID
+     */
+    public void logout(Socket socket, String userId) {
+        ClientSession session = connectedClients.get(socket.getPort());
+        if (session != null) {
+            users.logout(userId, session);
+        }
+    }
+
+    /**
+     * 私聊，查找一次索引，只放入一个客户端的发送队列
+     * @param userId 接收者的用户ID
+     * @param msg 消息
+     * @return 接收者是否在线
+     */
+    public boolean sendPrivate(String userId, String msg) {
+        ClientSession session = users.lookup(userId);
+        return session != null && session.send(msg);
+    }
+
+    /**
+     * 给客户端自己发送一条系统通知
+     * @param socket 客户端Socket
+     * @param msg 消息
+     */
+    public void reply(Socket socket, String msg) {
+        ClientSession session = connectedClients.get(socket.getPort());
+        if (session != null) {
+            session.send(msg);
+        }
+    }
+
     /**
      * 检查用户是否退出，由服务器端处理
      * @param msg 用户消息
@@ -106,9 +256,10 @@ public class ChatServer {
 
     /**
      * 服务器关闭
-     * 会更新server Socket的状态，同样需要线程安全
+     * ServerSocket的close本身是线程安全的
      */
-    public synchronized void close() {
+    public void close() {
+        timer.close();
         if (serverSocket != null) {
             try {
                 serverSocket.close();
@@ -126,7 +277,8 @@ public class ChatServer {
         try {
             // 绑定监听端口
             serverSocket = new ServerSocket(DEFAULT_PORT);
-            System.out.println("启动服务器，监听端口" + DEFAULT_PORT + "...");
+            timer.start();
+            System.out.println("启动服务器，监听端口" + DEFAULT_PORT + "，线程模型" + mode + "...");
 
             while (true) {
                 // 等待客户端连接
@@ -149,7 +301,9 @@ public class ChatServer {
      * @param args /
      */
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // 第一个参数或者-Dchat.executionMode指定线程模型，默认FIXED
+        String mode = args.length > 0 ? args[0] : System.getProperty("chat.executionMode", "FIXED");
+        ChatServer chatServer = new ChatServer(ExecutionMode.valueOf(mode.toUpperCase()));
         chatServer.start();
     }
 }
@@ -0,0 +1,171 @@
+package server;
+
+import logging.AsyncLogger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * 一个客户端的会话
+ * 转发消息只是放入这个客户端自己的发送队列，由它自己的写线程写socket，
+ * 这样一个很慢的客户端只会堵住自己的队列，不会拖慢发送者和其他客户端
+ */
+public class ClientSession implements Runnable {
+
+    /**
+     * 发送队列最多积压的消息数量，超过说明客户端读得太慢，直接断开
+     */
+    private static final int MAX_QUEUED = 1024;
+    /**
+     * 放入队列表示写线程该退出了
+     */
+    private static final String CLOSE = new String("close");
+
+    private final Socket socket;
+    private final int port;
+    private final Writer writer;
+    private final BlockingQueue<String> outbound = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private volatile boolean closed;
+    /**
+     * 最后一次收到客户端数据的时间(System.nanoTime)，读线程更新，时间轮线程检查
+     */
+    private volatile long lastReadNanos = System.nanoTime();
+    /**
+     * 发心跳时的最后读的时间，和lastReadNanos相同说明这次空闲期间已经发过心跳，只由时间轮线程访问
+     */
+    private long pingedFor = Long.MIN_VALUE;
+
+    /**
+     * @param socket 客户端Socket
+     * @param writerExecutor 运行写线程的线程池，每个会话占用一个线程
+     * @throws IOException IO异常
+     */
+    public ClientSession(Socket socket, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.port = socket.getPort();
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        writerExecutor.execute(this);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * 读线程每收到一行调用一次，只写一个volatile字段
+     */
+    public void touch() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * @param lastReadNanos 检查时看到的最后读的时间
+     * @return 这次空闲期间是否已经发过心跳
+     */
+    public boolean isPinged(long lastReadNanos) {
+        return pingedFor == lastReadNanos;
+    }
+
+    public void setPinged(long lastReadNanos) {
+        this.pingedFor = lastReadNanos;
+    }
+
+    /**
+     * 空闲超时，直接关闭socket，阻塞在readLine的读线程会立即退出，
+     * 不等写线程，对方已经死掉时写线程可能一直阻塞
+     */
+    public void abort() {
+        closed = true;
+        closeSocket();
+    }
+
+    /**
+     * 把消息放入发送队列，不会阻塞
+     * 队列已满时断开这个客户端
+     * @param msg 消息
+     * @return 是否成功入队
+     */
+    public boolean send(String msg) {
+        if (closed) {
+            return false;
+        }
+        if (!outbound.offer(msg)) {
+            AsyncLogger.getDefault().warn("客户端[" + port + "]接收过慢，已断开");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 写线程：取出一条消息后把队列里已有的消息一起写完再flush，
+     * 积压的时候一次系统调用可以写出多条消息
+     */
+    @Override
+    public void run() {
+        try {
+            String msg;
+            while ((msg = outbound.take()) != CLOSE) {
+                do {
+                    writer.write(msg);
+                } while ((msg = outbound.poll()) != null && msg != CLOSE);
+                writer.flush();
+                if (msg == CLOSE) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+            try {
+                // 关闭writer等于关闭socket，读线程也会随之退出
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 关闭会话，写线程写完已经入队的消息后关闭socket，可以重复调用
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!outbound.offer(CLOSE)) {
+            // 队列已满，写线程可能阻塞在socket上，直接关闭socket
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.clear();
+        outbound.offer(CLOSE);
+    }
+}
@@ -0,0 +1,16 @@
+package server;
+
+/**
+ * 服务器处理客户端连接的线程模型
+ */
+public enum ExecutionMode {
+    /**
+     * 固定大小的线程池，伪异步IO，同时在线的用户数不超过线程数
+     */
+    FIXED,
+    /**
+     * 每个连接一个虚拟线程(JDK 21+)，阻塞IO时不占用平台线程
+     * 当前JDK不支持时退回FIXED
+     */
+    VIRTUAL
+}
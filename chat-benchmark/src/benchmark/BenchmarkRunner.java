@@ -0,0 +1,132 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * 运行基准测试并和保存的基线比较，部署前用来发现性能回归
+ * 参数和org.openjdk.jmh.Main一样，例如只运行转发：FanOutBenchmark -p roomSize=100
+ * 默认加上-prof gc，同时比较每次操作的耗时和分配的字节数
+ * -Dbench.saveBaseline=true 把这次的结果保存为基线
+ * -Dbench.baseline 基线文件，默认chat-benchmark/baseline.properties
+ * -Dbench.tolerance 允许的退化比例，默认0.1，超过时打印出来并以状态1退出
+ */
+public class BenchmarkRunner {
+
+    private static final String ALLOC = "gc.alloc.rate.norm";
+    // 每次操作分配的字节数变化小于这个值时不算退化，接近0的值按比例比较没有意义
+    private static final double MIN_ALLOC_CHANGE = 16;
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .parent(cli)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+
+        Map<String, Double> scores = new TreeMap<>();
+        Map<String, Boolean> lowerIsBetter = new TreeMap<>();
+        for (RunResult result : results) {
+            String key = key(result.getParams());
+            scores.put(key, result.getPrimaryResult().getScore());
+            lowerIsBetter.put(key, result.getParams().getMode() != Mode.Throughput);
+            // JMH返回的是原始类型的Map<String, Result>，按名称取出后再声明成Result<?>
+            for (String name : result.getSecondaryResults().keySet()) {
+                if (name.endsWith(ALLOC)) {
+                    Result<?> secondary = result.getSecondaryResults().get(name);
+                    scores.put(key + "@" + ALLOC, secondary.getScore());
+                    lowerIsBetter.put(key + "@" + ALLOC, true);
+                }
+            }
+        }
+
+        Path baseline = Paths.get(System.getProperty("bench.baseline", "chat-benchmark/baseline.properties"));
+        if (Boolean.getBoolean("bench.saveBaseline")) {
+            save(baseline, scores);
+            System.out.println("基线已保存到" + baseline);
+            return;
+        }
+        if (!Files.exists(baseline)) {
+            System.out.println("没有基线文件" + baseline + "，用-Dbench.saveBaseline=true保存这次的结果");
+            return;
+        }
+        double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.1"));
+        if (!compare(load(baseline), scores, lowerIsBetter, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return 基准测试的名字加上参数，例如benchmark.FanOutBenchmark.encodeOnceShared:roomSize=100
+     */
+    private static String key(BenchmarkParams params) {
+        StringBuilder key = new StringBuilder(params.getBenchmark());
+        for (String name : params.getParamsKeys()) {
+            key.append(':').append(name).append('=').append(params.getParam(name));
+        }
+        return key.toString();
+    }
+
+    /**
+     * 逐项和基线比较，基线中没有的项只打印不比较
+     * @return 是否没有超过允许范围的退化
+     */
+    private static boolean compare(Properties baseline, Map<String, Double> scores,
+                                   Map<String, Boolean> lowerIsBetter, double tolerance) {
+        boolean passed = true;
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            String old = baseline.getProperty(entry.getKey());
+            if (old == null) {
+                System.out.printf("%-80s %12.3f (新增)%n", entry.getKey(), entry.getValue());
+                continue;
+            }
+            double before = Double.parseDouble(old);
+            double change = before == 0 ? 0 : (entry.getValue() - before) / before;
+            boolean regressed = lowerIsBetter.get(entry.getKey()) ? change > tolerance : change < -tolerance;
+            if (entry.getKey().endsWith(ALLOC) && entry.getValue() - before < MIN_ALLOC_CHANGE) {
+                regressed = false;
+            }
+            System.out.printf("%-80s %12.3f -> %12.3f %+7.1f%%%s%n", entry.getKey(), before, entry.getValue(),
+                    change * 100, regressed ? "  退化" : "");
+            passed &= !regressed;
+        }
+        return passed;
+    }
+
+    private static Properties load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static void save(Path path, Map<String, Double> scores) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            properties.store(writer, "JMH基线，用BenchmarkRunner -Dbench.saveBaseline=true生成");
+        }
+    }
+}
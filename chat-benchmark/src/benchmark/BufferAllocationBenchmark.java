@@ -0,0 +1,68 @@
+package benchmark;
+
+import buffer.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每条消息需要一个buffer时的几种分配方式
+ * 用-prof gc运行可以看到每次操作分配的字节数，direct的分配不在堆上，但是回收要靠GC触发Cleaner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferAllocationBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    private int size;
+
+    private BufferPool pool;
+    // 最初的做法：每个服务器一个固定大小的缓冲区，每次clear后复用
+    private ByteBuffer reused;
+
+    @Setup
+    public void setUp() {
+        pool = new BufferPool(new int[]{256, 4096, 16384}, 64, 256, false);
+        reused = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public ByteBuffer heap() {
+        return ByteBuffer.allocate(size).put((byte) 1);
+    }
+
+    @Benchmark
+    public ByteBuffer direct() {
+        return ByteBuffer.allocateDirect(size).put((byte) 1);
+    }
+
+    @Benchmark
+    public int pooled() {
+        ByteBuffer buffer = pool.acquire(size);
+        buffer.put((byte) 1);
+        int position = buffer.position();
+        pool.release(buffer);
+        return position;
+    }
+
+    @Benchmark
+    public ByteBuffer reused() {
+        reused.clear();
+        return reused.put((byte) 1);
+    }
+}
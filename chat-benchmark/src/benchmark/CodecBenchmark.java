@@ -0,0 +1,97 @@
+package benchmark;
+
+import buffer.BufferPool;
+import codec.Frame;
+import codec.FrameCodec;
+import codec.Messages;
+import codec.VarintFrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条消息的编解码
+ * legacy*是最初的NIO聊天室的做法：receive中charset.decode整个缓冲区，
+ * forwardMessage中拼接"发送者:正文"再charset.encode；
+ * frame*是现在的帧格式：varint长度前缀 + Messages直接编码到缓冲区池借出的直接内存
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    // 正文的字符数，一半中文一半ASCII
+    @Param({"16", "256", "4096"})
+    private int length;
+
+    private final FrameCodec codec = new VarintFrameCodec();
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+    private final BufferPool pool = new BufferPool(new int[]{256, 4096, 16384}, 64, 256, false);
+    private final List<Frame> frames = new ArrayList<>();
+    private final String sender = "客户端[52011]";
+    private final byte[] senderBytes = sender.getBytes(UTF_8);
+    private final byte[] room = "lobby".getBytes(UTF_8);
+    private String text;
+    private ByteBuffer textBytes;
+    private ByteBuffer frameBytes;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(i % 2 == 0 ? '聊' : (char) ('a' + i % 26));
+        }
+        text = builder.toString();
+        textBytes = UTF_8.encode(text);
+        frameBytes = Messages.encode(codec, 1, "lobby", sender, text);
+    }
+
+    @Benchmark
+    public String legacyDecode() {
+        return String.valueOf(UTF_8.decode(textBytes.duplicate()));
+    }
+
+    @Benchmark
+    public String frameDecode() throws IOException {
+        codec.decode(frameBytes.duplicate(), frames);
+        String decoded = Messages.text(frames.get(0));
+        frames.clear();
+        return decoded;
+    }
+
+    @Benchmark
+    public ByteBuffer legacyEncode() {
+        return UTF_8.encode(sender + ":" + text);
+    }
+
+    @Benchmark
+    public int frameEncode() {
+        ByteBuffer out = pool.acquire(Messages.maxLength(codec, room, senderBytes, text, encoder));
+        Messages.encode(codec, 1, room, senderBytes, text, encoder, out);
+        int encoded = out.remaining();
+        pool.release(out);
+        return encoded;
+    }
+}
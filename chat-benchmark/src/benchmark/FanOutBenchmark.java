@@ -0,0 +1,98 @@
+package benchmark;
+
+import buffer.BufferPool;
+import buffer.SharedBuffer;
+import codec.FrameCodec;
+import codec.Messages;
+import codec.VarintFrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条消息转发给房间中所有人的开销，socket用NullChannel代替
+ * encodePerRecipient：最初的做法，每个接收者都拼接字符串并重新编码一次
+ * encodeOnceShared：编码一次放进SharedBuffer，每个接收者一个retain的只读视图
+ * encodeOnceGathering：帧头和正文分别编码一次，每个接收者gathering write两个duplicate
+ * 新增的转发策略在这里加一个方法，和前面几种用同样的roomSize比较
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    @Param({"10", "100", "1000"})
+    private int roomSize;
+
+    private final FrameCodec codec = new VarintFrameCodec();
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+    private final BufferPool pool = new BufferPool(new int[]{256, 4096}, 64, 256, false);
+    private final NullChannel channel = new NullChannel();
+    private final String sender = "客户端[52011]";
+    private final byte[] senderBytes = sender.getBytes(UTF_8);
+    private final byte[] room = "lobby".getBytes(UTF_8);
+    private final String text = "大家好，今天晚上一起吃饭吗？let's meet at 7pm";
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        names = new String[roomSize];
+        for (int i = 0; i < roomSize; i++) {
+            names[i] = "客户端[" + (50000 + i) + "]";
+        }
+    }
+
+    @Benchmark
+    public long encodePerRecipient() {
+        for (String name : names) {
+            channel.write(UTF_8.encode(name + ":" + text));
+        }
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long encodeOnceShared() {
+        ByteBuffer out = pool.acquire(Messages.maxLength(codec, room, senderBytes, text, encoder));
+        Messages.encode(codec, 1, room, senderBytes, text, encoder, out);
+        SharedBuffer message = new SharedBuffer(pool, out);
+        for (int i = 0; i < roomSize; i++) {
+            // 和Connection一样：入队时retain，写完后release
+            channel.write(message.retainedView());
+            message.release();
+        }
+        message.release();
+        return channel.getWritten();
+    }
+
+    @Benchmark
+    public long encodeOnceGathering() {
+        ByteBuffer body = UTF_8.encode(text);
+        ByteBuffer header = Messages.header(codec, 1, room, senderBytes, body.remaining());
+        ByteBuffer[] srcs = new ByteBuffer[2];
+        for (int i = 0; i < roomSize; i++) {
+            srcs[0] = header.duplicate();
+            srcs[1] = body.duplicate();
+            channel.write(srcs);
+        }
+        return channel.getWritten();
+    }
+}
@@ -0,0 +1,50 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 只消费字节的channel，代替socket，让基准测试只测量编码和复制本身
+ */
+class NullChannel implements GatheringByteChannel {
+
+    private long written;
+
+    @Override
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        // 读一个字节，避免JIT把整个buffer的处理优化掉
+        if (n > 0) {
+            written += src.get(src.limit() - 1);
+        }
+        src.position(src.limit());
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
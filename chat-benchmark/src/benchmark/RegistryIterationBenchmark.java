@@ -0,0 +1,145 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转发一条消息时遍历在线客户端的开销
+ * bioHashMap：最初的BIO服务器，在synchronized中遍历HashMap的keySet再get
+ * bioConcurrentMap：现在的BIO服务器，无锁遍历ConcurrentHashMap的values
+ * nioKeys：最初的NIO服务器遍历selector.keys()并判断channel类型，这里用HashSet加instanceof模拟
+ * aioList：最初的AIO服务器，在synchronized中遍历ArrayList
+ * aioKeySet：现在的AIO服务器，遍历ConcurrentHashMap.newKeySet()
+ * roomShards：现在的NIO服务器，只遍历房间中按Reactor分组的HashSet
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryIterationBenchmark {
+
+    /**
+     * 代替各个服务器中的客户端对象
+     */
+    static final class Client {
+        final int id;
+
+        Client(int id) {
+            this.id = id;
+        }
+    }
+
+    @Param({"10", "1000", "10000"})
+    private int clients;
+
+    // 房间分成几组，和NIO服务器的worker数一致
+    private static final int SHARDS = 4;
+
+    private final Map<Integer, Client> hashMap = new HashMap<>();
+    private final Map<Integer, Client> concurrentMap = new ConcurrentHashMap<>();
+    private final Set<Object> keys = new HashSet<>();
+    private final List<Client> list = new ArrayList<>();
+    private final Set<Client> keySet = ConcurrentHashMap.newKeySet();
+    private final List<Set<Client>> shards = new ArrayList<>();
+    private Client self;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(new HashSet<>());
+        }
+        // selector.keys()里还有ServerSocketChannel
+        keys.add(new Object());
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(i);
+            hashMap.put(i, client);
+            concurrentMap.put(i, client);
+            keys.add(client);
+            list.add(client);
+            keySet.add(client);
+            shards.get(i % SHARDS).add(client);
+        }
+        self = list.get(0);
+    }
+
+    @Benchmark
+    public void bioHashMap(Blackhole bh) {
+        synchronized (this) {
+            for (Integer id : hashMap.keySet()) {
+                if (!id.equals(self.id)) {
+                    bh.consume(hashMap.get(id));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void bioConcurrentMap(Blackhole bh) {
+        for (Client client : concurrentMap.values()) {
+            if (client != self) {
+                bh.consume(client);
+            }
+        }
+    }
+
+    @Benchmark
+    public void nioKeys(Blackhole bh) {
+        for (Object key : keys) {
+            if (key instanceof Client && key != self) {
+                bh.consume(key);
+            }
+        }
+    }
+
+    @Benchmark
+    public void aioList(Blackhole bh) {
+        synchronized (this) {
+            for (Client client : list) {
+                if (client != self) {
+                    bh.consume(client);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void aioKeySet(Blackhole bh) {
+        for (Client client : keySet) {
+            if (client != self) {
+                bh.consume(client);
+            }
+        }
+    }
+
+    @Benchmark
+    public void roomShards(Blackhole bh) {
+        for (Set<Client> shard : shards) {
+            for (Client client : shard) {
+                if (client != self) {
+                    bh.consume(client);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接内存(direct)缓冲区池
+ * 直接内存分配慢，但读写socket时不需要再从堆内存复制一次，所以复用起来
+ * 分两层缓存：
+ *  1. 线程本地缓存，同一个线程借还不需要任何同步
+ *  2. 所有线程共享的无锁空闲链表，线程本地缓存满了或者空了才会用到
+ * 用法：acquire借出，用完一定要release，借出的buffer不要再被别人持有
+ */
+public class BufferPool {
+
+    // 默认的大小等级：256B, 1KB, 4KB, 16KB, 64KB
+    private static final int[] DEFAULT_SIZE_CLASSES = {256, 1024, 4096, 16 * 1024, 64 * 1024};
+    // 每个线程每个等级最多缓存的buffer数量
+    private static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+    // 共享空闲链表每个等级最多保存的buffer数量
+    private static final int DEFAULT_SHARED_SIZE = 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_SIZE_CLASSES,
+            DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_SIZE, Boolean.getBoolean("buffer.leakDetection"));
+
+    private final int[] sizeClasses;
+    private final int threadCacheSize;
+    private final int sharedSize;
+    private final Queue<ByteBuffer>[] shared;
+    private final AtomicInteger[] sharedCounts;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+
+    // 命中缓存(线程本地或共享)的次数
+    private final LongAdder hits = new LongAdder();
+    // 需要新分配直接内存的次数
+    private final LongAdder misses = new LongAdder();
+    // 已经借出还没有归还的数量
+    private final LongAdder outstanding = new LongAdder();
+
+    // 泄漏检测：记录每个借出buffer的借出位置，开销较大，只在调试时开启
+    private final boolean leakDetection;
+    private final Map<ByteBuffer, Throwable> leased;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int[] sizeClasses, int threadCacheSize, int sharedSize, boolean leakDetection) {
+        this.sizeClasses = sizeClasses.clone();
+        this.threadCacheSize = threadCacheSize;
+        this.sharedSize = sharedSize;
+        this.shared = new Queue[sizeClasses.length];
+        this.sharedCounts = new AtomicInteger[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[this.sizeClasses.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+        this.leakDetection = leakDetection;
+        // ByteBuffer的equals比较的是内容，所以必须按引用比较
+        this.leased = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    /**
+     * 进程内共享的默认缓冲区池，-Dbuffer.leakDetection=true开启泄漏检测
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 借出一个容量不小于size的直接内存buffer，已经clear过
+     * 超过最大等级的请求直接分配，不会被缓存
+     * @param size 需要的字节数
+     * @return 写模式的buffer
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClassIndex(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = threadCaches.get()[index].pollFirst();
+            if (buffer == null) {
+                buffer = shared[index].poll();
+                if (buffer != null) {
+                    sharedCounts[index].decrementAndGet();
+                }
+            }
+        }
+        if (buffer != null) {
+            hits.increment();
+            buffer.clear();
+        } else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? sizeClasses[index] : size);
+        }
+        outstanding.increment();
+        if (leakDetection) {
+            leased.put(buffer, new Throwable("buffer借出位置，容量" + buffer.capacity()));
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还buffer，必须是acquire返回的原始对象，不能是duplicate/slice
+     * @param buffer 借出的buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetection && leased.remove(buffer) == null) {
+            throw new IllegalStateException("归还了不是从缓冲区池借出的buffer，或者重复归还");
+        }
+        outstanding.decrement();
+        int index = exactSizeClassIndex(buffer.capacity());
+        if (index < 0 || !buffer.isDirect()) {
+            // 不属于任何等级，交给GC
+            return;
+        }
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[index];
+        if (cache.size() < threadCacheSize) {
+            cache.addFirst(buffer);
+        } else if (sharedCounts[index].incrementAndGet() <= sharedSize) {
+            shared[index].offer(buffer);
+        } else {
+            sharedCounts[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * 把buffer扩容到至少minCapacity，并保留原来已经写入的内容
+     * @param buffer 写模式的buffer，会被归还
+     * @param minCapacity 最小容量
+     * @return 新的写模式buffer
+     */
+    public ByteBuffer expand(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer expanded = acquire(minCapacity);
+        buffer.flip();
+        expanded.put(buffer);
+        release(buffer);
+        return expanded;
+    }
+
+    /**
+     * 最大的可缓存容量
+     */
+    public int maxPooledSize() {
+        return sizeClasses[sizeClasses.length - 1];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getOutstanding() {
+        return outstanding.sum();
+    }
+
+    /**
+     * 开启泄漏检测时，返回所有还没有归还的buffer的借出位置
+     */
+    public List<Throwable> leaks() {
+        if (!leakDetection) {
+            return Collections.emptyList();
+        }
+        synchronized (leased) {
+            return new ArrayList<>(leased.values());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHits() + ", misses=" + getMisses()
+                + ", outstanding=" + getOutstanding() + "}";
+    }
+
+    private int sizeClassIndex(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (size <= sizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int exactSizeClassIndex(int capacity) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (capacity == sizeClasses[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+package buffer;
+
+/**
+ * 根据最近读到的字节数决定下一次读向缓冲区池借多大的buffer
+ * 平时按读到字节数的指数移动平均(新值占1/4)取整到2的幂，偶尔一条大消息不会让缓冲区一直很大；
+ * 一次读把缓冲区读满了说明后面还有数据，直接翻倍，不等平均值慢慢涨上来
+ * 不是线程安全的，同一个连接同一时间只有一个读
+ */
+public class ReadSizeEstimator {
+
+    private final int min;
+    private final int max;
+    // 最近读到的字节数的移动平均
+    private int average;
+    private int next;
+
+    /**
+     * @param min 最小的读缓冲区，比如缓冲区池最小的等级
+     * @param initial 第一次读的缓冲区大小
+     * @param max 最大的读缓冲区
+     */
+    public ReadSizeEstimator(int min, int initial, int max) {
+        this.min = min;
+        this.max = max;
+        this.average = initial;
+        this.next = clamp(initial);
+    }
+
+    /**
+     * @return 下一次读应该借的缓冲区大小
+     */
+    public int next() {
+        return next;
+    }
+
+    /**
+     * 记录一次读的结果
+     * @param bytes 这次读到的字节数
+     * @param capacity 这次读用的缓冲区的可写空间
+     */
+    public void record(int bytes, int capacity) {
+        if (bytes >= capacity) {
+            average = Math.max(average, (int) Math.min(2L * capacity, max));
+        } else {
+            average += (bytes - average) / 4;
+        }
+        next = clamp(average);
+    }
+
+    private int clamp(int size) {
+        int rounded = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        return Math.max(min, Math.min(rounded, max));
+    }
+}
@@ -0,0 +1,86 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带引用计数的共享buffer
+ * 一条广播消息只编码一次，多个接收者各自持有一个只读视图，
+ * 最后一个接收者发送完成(release)后才把buffer还给缓冲区池
+ */
+public class SharedBuffer {
+
+    private final BufferPool pool;
+    // 原始buffer，position/limit标记了有效内容
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    /**
+     * @param pool 归还的缓冲区池，为null时交给GC
+     * @param buffer 读模式的buffer，创建者持有第一个引用
+     */
+    public SharedBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 包装一个不属于缓冲区池的buffer
+     */
+    public static SharedBuffer unpooled(ByteBuffer buffer) {
+        return new SharedBuffer(null, buffer);
+    }
+
+    /**
+     * 有效内容的字节数
+     */
+    public int readableBytes() {
+        return buffer.remaining();
+    }
+
+    /**
+     * 增加一个引用并返回一个独立的只读视图
+     * 视图有自己的position/limit，但是和原始buffer共享内容
+     */
+    public ByteBuffer retainedView() {
+        retain();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 不增加引用的只读视图，只能在持有引用期间使用
+     */
+    public ByteBuffer duplicate() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public SharedBuffer retain() {
+        for (;;) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("buffer已经被释放");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 减少一个引用，引用数为0时归还buffer
+     */
+    public void release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt == 0) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        } else if (cnt < 0) {
+            throw new IllegalStateException("buffer重复释放");
+        }
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
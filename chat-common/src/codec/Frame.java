@@ -0,0 +1,66 @@
+package codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 一个完整的消息帧：类型 + 负载
+ */
+public class Frame {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    private final FrameType type;
+    // 读模式的负载，不包括长度前缀和类型字节
+    private final ByteBuffer payload;
+
+    public Frame(FrameType type, ByteBuffer payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public static Frame text(String text) {
+        return new Frame(FrameType.TEXT, UTF_8.encode(text));
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * 负载是否以prefix开头，直接比较字节，不解码成字符串
+     * @param prefix UTF-8编码的前缀
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (payload.remaining() < prefix.length) {
+            return false;
+        }
+        int position = payload.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 负载是否正好等于bytes，直接比较字节，不解码成字符串
+     * @param bytes UTF-8编码的内容
+     */
+    public boolean contentEquals(byte[] bytes) {
+        return payload.remaining() == bytes.length && startsWith(bytes);
+    }
+
+    /**
+     * 按UTF-8把负载解码成字符串，不改变payload的position
+     */
+    public String text() {
+        return String.valueOf(UTF_8.decode(payload.duplicate()));
+    }
+}
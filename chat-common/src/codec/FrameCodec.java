@@ -0,0 +1,57 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 帧编解码器
+ * TCP是字节流，一次read可能读到半个消息，也可能读到好几个消息，
+ * 所以需要在字节流上划分出一个个完整的帧
+ */
+public interface FrameCodec {
+
+    /**
+     * 把帧编码成可以直接写入channel的字节
+     * @param frame 帧
+     * @return 读模式的buffer
+     */
+    ByteBuffer encode(Frame frame);
+
+    /**
+     * 帧头(长度前缀 + 类型)占多少字节
+     * @param payloadLength 负载长度
+     */
+    int headerLength(int payloadLength);
+
+    /**
+     * 只写入帧头，负载由调用者单独写入或者通过gathering write发送
+     * @param out 写模式的buffer
+     * @param type 帧类型
+     * @param payloadLength 负载长度
+     */
+    void writeHeader(ByteBuffer out, FrameType type, int payloadLength);
+
+    /**
+     * 从累积的读缓冲区中解码出所有完整的帧
+     * 不完整的帧留在in中(position停在它的开头)，等下次读到更多字节再解码
+     * @param in 读模式的累积缓冲区
+     * @param out 解码出来的帧，可能是0个或多个
+     * @throws IOException 帧格式错误或超过最大长度
+     */
+    default void decode(ByteBuffer in, List<Frame> out) throws IOException {
+        decode(in, out, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 同上，但最多解码maxFrames个帧，剩下的完整帧也留在in中
+     * 限速时用来只处理令牌允许的消息，其余的留到令牌补充之后
+     * @param maxFrames 最多解码的帧数
+     */
+    void decode(ByteBuffer in, List<Frame> out, int maxFrames) throws IOException;
+
+    /**
+     * 单个帧编码后最多占多少字节，累积缓冲区不需要比它更大
+     */
+    int maxEncodedLength();
+}
@@ -0,0 +1,47 @@
+package codec;
+
+/**
+ * 帧类型，编码时占一个字节
+ */
+public enum FrameType {
+    // 普通文本消息(包括quit等命令)，也用于服务器的系统通知
+    TEXT(1),
+    // 服务器转发的房间消息，负载 = 房间中的序号(8字节) + 房间名(varint长度 + UTF-8)
+    //  + 发送者(varint长度 + UTF-8) + 消息正文(UTF-8)
+    MESSAGE(2),
+    // 私聊消息，负载 = 发送者(varint长度 + UTF-8) + 消息正文(UTF-8)
+    PRIVATE(3),
+    // 确认，负载 = 消息序号(8字节) + 房间名(UTF-8)
+    // 服务器发给发送者表示消息已经持久化；客户端定期发给服务器表示已经收到房间中到这个序号为止的消息
+    ACK(4),
+    // 客户端重连后发送，负载和ACK相同，服务器加入这个房间并只补发序号之后的消息
+    RESUME(5),
+    // 心跳，负载为空，收到的一方回复PONG，服务器在连接空闲一段时间后发送，客户端也可以发送
+    PING(6),
+    // 心跳的回复，负载为空
+    PONG(7);
+
+    private final byte code;
+
+    FrameType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * 根据类型字节找到对应的帧类型
+     * @param code 类型字节
+     * @return 帧类型，不认识的类型返回null
+     */
+    public static FrameType valueOf(byte code) {
+        for (FrameType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
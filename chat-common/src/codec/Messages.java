@@ -0,0 +1,268 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MESSAGE/PRIVATE/ACK/RESUME帧的编解码
+ * 同一条消息转发给N个客户端时，帧头 + 发送者只编码一次，正文也只编码一次，
+ * 两部分通过gathering write一起发送，不需要拼接字符串
+ */
+public final class Messages {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    private Messages() {
+    }
+
+    /**
+     * 编码MESSAGE帧中正文之前的部分：帧头 + 序号 + 房间 + 发送者
+     * @param codec 帧编解码器
+     * @param seq 消息在房间中的序号
+     * @param room UTF-8编码的房间名
+     * @param sender UTF-8编码的发送者名称
+     * @param textLength 正文的字节数
+     * @return 读模式的buffer
+     */
+    public static ByteBuffer header(FrameCodec codec, long seq, byte[] room, byte[] sender, int textLength) {
+        ByteBuffer header = ByteBuffer.allocate(headerLength(codec, room, sender, textLength));
+        writeHeader(codec, header, FrameType.MESSAGE, seq, room, sender, textLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * 编码后的帧最多占多少字节，用来决定向缓冲区池借多大的buffer
+     * @param room 房间名，PRIVATE帧为null
+     */
+    public static int maxLength(FrameCodec codec, byte[] room, byte[] sender, CharSequence text,
+                                CharsetEncoder encoder) {
+        int maxTextLength = (int) Math.ceil(text.length() * encoder.maxBytesPerChar());
+        return headerLength(codec, room, sender, maxTextLength) + maxTextLength;
+    }
+
+    /**
+     * 直接把MESSAGE帧编码到out中，不产生中间的byte[]或String
+     * 正文编码前不知道字节数，所以先按最大帧头预留空间，编码完正文再把帧头写在正文前面
+     * 调用后out的position/limit正好标记整个帧
+     * @param out 写模式的buffer，剩余空间不小于maxLength
+     */
+    public static void encode(FrameCodec codec, long seq, byte[] room, byte[] sender, CharSequence text,
+                              CharsetEncoder encoder, ByteBuffer out) {
+        encode(codec, FrameType.MESSAGE, seq, room, sender, text, encoder, out);
+    }
+
+    /**
+     * 同上，编码不属于任何房间、没有序号的PRIVATE帧
+     */
+    public static void encodePrivate(FrameCodec codec, byte[] sender, CharSequence text,
+                                     CharsetEncoder encoder, ByteBuffer out) {
+        encode(codec, FrameType.PRIVATE, 0, null, sender, text, encoder, out);
+    }
+
+    /**
+     * 编码后的帧占多少字节，正文已经是UTF-8字节时使用
+     * @param textLength 正文的字节数
+     */
+    public static int length(FrameCodec codec, byte[] room, byte[] sender, int textLength) {
+        return headerLength(codec, room, sender, textLength) + textLength;
+    }
+
+    /**
+     * 把客户端发来的UTF-8正文原样放进MESSAGE帧，中继转发时不解码成字符串也不重新编码
+     * 调用后out的position/limit正好标记整个帧
+     * @param text 读模式的正文，不改变它的position
+     * @param out 写模式的buffer，剩余空间不小于length
+     */
+    public static void encode(FrameCodec codec, long seq, byte[] room, byte[] sender, ByteBuffer text,
+                              ByteBuffer out) {
+        int start = out.position();
+        writeHeader(codec, out, FrameType.MESSAGE, seq, room, sender, text.remaining());
+        out.put(text.duplicate());
+        out.limit(out.position());
+        out.position(start);
+    }
+
+    private static void encode(FrameCodec codec, FrameType type, long seq, byte[] room, byte[] sender,
+                               CharSequence text, CharsetEncoder encoder, ByteBuffer out) {
+        int maxTextLength = (int) Math.ceil(text.length() * encoder.maxBytesPerChar());
+        int textStart = out.position() + headerLength(codec, room, sender, maxTextLength);
+        out.position(textStart);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(text), out, true);
+        if (!result.isUnderflow()) {
+            throw new IllegalArgumentException("消息编码失败：" + result);
+        }
+        encoder.flush(out);
+        int end = out.position();
+        int start = textStart - headerLength(codec, room, sender, end - textStart);
+        out.position(start);
+        writeHeader(codec, out, type, seq, room, sender, end - textStart);
+        out.limit(end);
+        out.position(start);
+    }
+
+    private static int payloadLength(byte[] room, byte[] sender, int textLength) {
+        int length = VarintFrameCodec.varintSize(sender.length) + sender.length + textLength;
+        if (room != null) {
+            length += Long.BYTES + VarintFrameCodec.varintSize(room.length) + room.length;
+        }
+        return length;
+    }
+
+    private static int headerLength(FrameCodec codec, byte[] room, byte[] sender, int textLength) {
+        int payloadLength = payloadLength(room, sender, textLength);
+        return codec.headerLength(payloadLength) + payloadLength - textLength;
+    }
+
+    private static void writeHeader(FrameCodec codec, ByteBuffer out, FrameType type, long seq,
+                                    byte[] room, byte[] sender, int textLength) {
+        codec.writeHeader(out, type, payloadLength(room, sender, textLength));
+        if (room != null) {
+            out.putLong(seq);
+            VarintFrameCodec.writeVarint(out, room.length);
+            out.put(room);
+        }
+        VarintFrameCodec.writeVarint(out, sender.length);
+        out.put(sender);
+    }
+
+    /**
+     * 一次性编码完整的MESSAGE帧
+     */
+    public static ByteBuffer encode(FrameCodec codec, long seq, String room, String sender, String text) {
+        ByteBuffer body = UTF_8.encode(text);
+        ByteBuffer header = header(codec, seq, room.getBytes(UTF_8), sender.getBytes(UTF_8), body.remaining());
+        ByteBuffer out = ByteBuffer.allocate(header.remaining() + body.remaining());
+        out.put(header).put(body).flip();
+        return out;
+    }
+
+    /**
+     * 编码一个服务器发给发送者的ACK帧，表示消息已经持久化
+     * @param codec 编解码器
+     * @param seq 已经持久化的消息序号
+     * @return 读模式的heap buffer
+     */
+    public static ByteBuffer ack(FrameCodec codec, long seq) {
+        return ack(codec, seq, "");
+    }
+
+    /**
+     * 编码一个客户端发给服务器的ACK帧，表示已经收到房间中到seq为止的所有消息
+     */
+    public static ByteBuffer ack(FrameCodec codec, long seq, String room) {
+        return seqFrame(codec, FrameType.ACK, seq, room);
+    }
+
+    /**
+     * 编码一个RESUME帧，客户端重连后从房间中seq之后的消息继续
+     */
+    public static ByteBuffer resume(FrameCodec codec, long seq, String room) {
+        return seqFrame(codec, FrameType.RESUME, seq, room);
+    }
+
+    /**
+     * 编码一个PING帧，帧很小，每次新建不需要缓存
+     */
+    public static ByteBuffer ping(FrameCodec codec) {
+        return codec.encode(new Frame(FrameType.PING, ByteBuffer.allocate(0)));
+    }
+
+    /**
+     * 编码一个回复PING的PONG帧
+     */
+    public static ByteBuffer pong(FrameCodec codec) {
+        return codec.encode(new Frame(FrameType.PONG, ByteBuffer.allocate(0)));
+    }
+
+    /**
+     * 负载 = 序号(8字节) + 房间名(UTF-8)
+     */
+    private static ByteBuffer seqFrame(FrameCodec codec, FrameType type, long seq, String room) {
+        byte[] roomBytes = room.getBytes(UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES + roomBytes.length);
+        payload.putLong(seq).put(roomBytes).flip();
+        return codec.encode(new Frame(type, payload));
+    }
+
+    /**
+     * @return MESSAGE、ACK、RESUME帧中的消息序号
+     * @throws IOException 负载不足8个字节
+     */
+    public static long seq(Frame frame) throws IOException {
+        ByteBuffer payload = frame.getPayload();
+        checkSeq(payload);
+        return payload.getLong(payload.position());
+    }
+
+    /**
+     * 解析MESSAGE、ACK、RESUME帧中的房间名
+     */
+    public static String room(Frame frame) throws IOException {
+        ByteBuffer payload = frame.getPayload().duplicate();
+        checkSeq(payload);
+        payload.position(payload.position() + Long.BYTES);
+        if (frame.getType() == FrameType.MESSAGE) {
+            int length = readLength(payload);
+            payload.limit(payload.position() + length);
+        }
+        return String.valueOf(UTF_8.decode(payload));
+    }
+
+    /**
+     * 解析MESSAGE/PRIVATE帧的发送者
+     */
+    public static String sender(Frame frame) throws IOException {
+        ByteBuffer payload = senderStart(frame);
+        int length = readLength(payload);
+        payload.limit(payload.position() + length);
+        return String.valueOf(UTF_8.decode(payload));
+    }
+
+    /**
+     * 解析MESSAGE/PRIVATE帧的正文
+     */
+    public static String text(Frame frame) throws IOException {
+        ByteBuffer payload = senderStart(frame);
+        int length = readLength(payload);
+        payload.position(payload.position() + length);
+        return String.valueOf(UTF_8.decode(payload));
+    }
+
+    /**
+     * @return position在发送者长度处的负载
+     */
+    private static ByteBuffer senderStart(Frame frame) throws IOException {
+        ByteBuffer payload = frame.getPayload().duplicate();
+        if (frame.getType() == FrameType.MESSAGE) {
+            checkSeq(payload);
+            payload.position(payload.position() + Long.BYTES);
+            int roomLength = readLength(payload);
+            payload.position(payload.position() + roomLength);
+        }
+        return payload;
+    }
+
+    /**
+     * 负载来自对方，长度不可信，不足一个序号时按非法的帧处理，只断开这个连接
+     */
+    private static void checkSeq(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < Long.BYTES) {
+            throw new IOException("负载太短，没有序号：" + payload.remaining());
+        }
+    }
+
+    private static int readLength(ByteBuffer payload) throws IOException {
+        int length = VarintFrameCodec.readVarint(payload);
+        if (length < 0 || length > payload.remaining()) {
+            throw new IOException("非法的长度：" + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,139 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 变长整数长度前缀的帧格式：
+ * +----------------+-----------+-----------------+
+ * | length(varint) | type(1B)  | payload         |
+ * +----------------+-----------+-----------------+
+ * length = 1 + payload长度，varint每个字节低7位存数据，最高位表示后面还有字节
+ * 小于128字节的消息只需要1个字节的长度前缀
+ */
+public class VarintFrameCodec implements FrameCodec {
+
+    // 默认单帧最大1MB，防止恶意客户端让服务器分配超大缓冲区
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+    // int的varint编码最多5个字节
+    public static final int MAX_VARINT_LENGTH = 5;
+
+    private final int maxFrameLength;
+
+    public VarintFrameCodec() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public VarintFrameCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    @Override
+    public int maxEncodedLength() {
+        return MAX_VARINT_LENGTH + maxFrameLength;
+    }
+
+    @Override
+    public ByteBuffer encode(Frame frame) {
+        ByteBuffer payload = frame.getPayload().duplicate();
+        ByteBuffer out = ByteBuffer.allocate(headerLength(payload.remaining()) + payload.remaining());
+        writeHeader(out, frame.getType(), payload.remaining());
+        out.put(payload);
+        out.flip();
+        return out;
+    }
+
+    @Override
+    public int headerLength(int payloadLength) {
+        return varintSize(1 + payloadLength) + 1;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer out, FrameType type, int payloadLength) {
+        writeVarint(out, 1 + payloadLength);
+        out.put(type.getCode());
+    }
+
+    @Override
+    public void decode(ByteBuffer in, List<Frame> out, int maxFrames) throws IOException {
+        int decoded = 0;
+        while (in.hasRemaining() && decoded < maxFrames) {
+            int start = in.position();
+            int length = readVarint(in);
+            if (length == -1) {
+                // 长度前缀还没有读完整
+                in.position(start);
+                return;
+            }
+            if (length < 1 || length > maxFrameLength) {
+                throw new IOException("非法的帧长度：" + length);
+            }
+            if (in.remaining() < length) {
+                // 帧还没有读完整，等下一次read
+                in.position(start);
+                return;
+            }
+            byte code = in.get();
+            FrameType type = FrameType.valueOf(code);
+            if (type == null) {
+                throw new IOException("未知的帧类型：" + code);
+            }
+            // 累积缓冲区会被复用，所以负载需要复制出来
+            byte[] payload = new byte[length - 1];
+            in.get(payload);
+            out.add(new Frame(type, ByteBuffer.wrap(payload)));
+            decoded++;
+        }
+    }
+
+    /**
+     * 计算varint编码后的字节数
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 写入varint
+     * @param out 写模式的buffer
+     * @param value 非负整数
+     */
+    public static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * 读取varint
+     * @param in 读模式的buffer
+     * @return 读到的值，字节不够时返回-1(position已经移动，调用者负责恢复)
+     * @throws IOException varint超过5个字节
+     */
+    public static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_LENGTH; i++) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint长度超过" + MAX_VARINT_LENGTH + "个字节");
+    }
+}
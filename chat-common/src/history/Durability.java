@@ -0,0 +1,19 @@
+package history;
+
+/**
+ * 消息持久化的方式
+ */
+public enum Durability {
+    /**
+     * 只写入映射内存，由操作系统决定什么时候写回磁盘，进程崩溃不丢消息，机器掉电会丢
+     */
+    NONE,
+    /**
+     * 组提交：写线程把一段时间内所有连接的消息攒成一批，每批force一次
+     */
+    BATCH,
+    /**
+     * 每条消息force一次，最安全也最慢
+     */
+    PER_MESSAGE
+}
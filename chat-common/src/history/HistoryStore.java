@@ -0,0 +1,83 @@
+package history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 所有房间的历史消息日志，每个房间一个子目录
+ */
+public class HistoryStore implements Closeable {
+
+    private final File baseDir;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final ConcurrentMap<String, MessageLog> logs = new ConcurrentHashMap<>();
+
+    public HistoryStore(File baseDir) {
+        this(baseDir, MessageLog.DEFAULT_SEGMENT_SIZE, MessageLog.DEFAULT_INDEX_INTERVAL);
+    }
+
+    public HistoryStore(File baseDir, int segmentSize, int indexInterval) {
+        this.baseDir = baseDir;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * 获取房间的日志，第一次访问时打开或创建
+     * @param roomId 房间名
+     */
+    public MessageLog log(String roomId) throws IOException {
+        try {
+            return logs.computeIfAbsent(roomId, id -> {
+                try {
+                    return new MessageLog(new File(baseDir, dirName(id)), segmentSize, indexInterval);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 关闭不再使用的房间日志，释放文件和映射内存，之后再访问这个房间时重新打开
+     * @param roomId 房间名
+     * @param log 只有仍然是这个房间当前的日志时才关闭
+     */
+    public void release(String roomId, MessageLog log) throws IOException {
+        if (logs.remove(roomId, log)) {
+            log.close();
+        }
+    }
+
+    /**
+     * 房间名可以是任意字符，除了字母、数字、_和-之外都转成%XX，
+     * 避免出现..或者/这样的目录名，而且不同的房间名不会冲突
+     */
+    static String dirName(String roomId) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : roomId.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return name.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MessageLog log : logs.values()) {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package history;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个房间的历史消息日志，只追加不修改
+ * 日志按大小切分成多个分段文件，每个分段整个映射到内存，
+ * 消息内容不进入堆内存，一个节点可以保存上百万条消息
+ * 每条记录是以varint长度开头的完整帧(VarintFrameCodec的格式)，
+ * 所以读出来的连续记录可以不经过解码直接transferTo给客户端
+ * 序号从1开始，每追加一条加1
+ */
+public class MessageLog implements Closeable {
+
+    // 默认分段大小64MB
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // 默认每64条消息记录一个索引项
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int indexInterval;
+    // 按序号从小到大排列，最后一个是正在写的分段
+    private final List<Segment> segments = new ArrayList<>();
+    // 从这个下标开始的分段可能有还没有刷到磁盘的内容
+    private int dirtyFrom;
+
+    public MessageLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * 打开目录下已有的分段，没有时创建第一个分段
+     * @param dir 日志目录
+     * @param segmentSize 分段文件大小
+     * @param indexInterval 每多少条消息记录一个索引项
+     */
+    public MessageLog(File dir, int segmentSize, int indexInterval) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建日志目录：" + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        List<Long> baseSeqs = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                baseSeqs.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        baseSeqs.sort(null);
+        for (long baseSeq : baseSeqs) {
+            segments.add(Segment.open(new File(dir, Segment.fileName(baseSeq)), baseSeq, segmentSize, indexInterval));
+        }
+        if (segments.isEmpty()) {
+            roll(1);
+        }
+    }
+
+    private Segment roll(long baseSeq) throws IOException {
+        Segment segment = Segment.open(new File(dir, Segment.fileName(baseSeq)), baseSeq, segmentSize, indexInterval);
+        segments.add(segment);
+        return segment;
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * 追加一条消息，当前分段写满时切换到新的分段
+     * @param record 以varint长度开头的完整帧，读模式，position不会改变
+     * @return 消息的序号
+     * @throws IOException 消息比分段还大，或者创建分段失败
+     */
+    public synchronized long append(ByteBuffer record) throws IOException {
+        Segment segment = active();
+        if (!segment.append(record)) {
+            if (segment.getCount() == 0) {
+                throw new IOException("消息长度" + record.remaining() + "超过分段大小" + segmentSize);
+            }
+            segment = roll(segment.getEndSeq());
+            if (!segment.append(record)) {
+                throw new IOException("消息长度" + record.remaining() + "超过分段大小" + segmentSize);
+            }
+        }
+        return segment.getEndSeq() - 1;
+    }
+
+    /**
+     * 追加一条已经编好序号的消息，日志中的序号必须和消息中的序号一致，
+     * 否则按日志序号读出来的消息和客户端看到的序号对不上
+     * @param record 以varint长度开头的完整帧，读模式，position不会改变
+     * @param seq 消息中的序号，必须是日志的下一个序号
+     * @throws SeqMismatchException 序号不是日志的下一个序号，前面的消息写入失败了
+     * @throws IOException 写入失败，日志的下一个序号不变
+     */
+    public synchronized void append(ByteBuffer record, long seq) throws IOException {
+        long next = nextSeq();
+        if (seq != next) {
+            throw new SeqMismatchException(seq, next);
+        }
+        append(record);
+    }
+
+    /**
+     * 下一条消息的序号
+     */
+    public synchronized long nextSeq() {
+        return active().getEndSeq();
+    }
+
+    /**
+     * 日志中最早的消息的序号
+     */
+    public synchronized long firstSeq() {
+        return segments.get(0).getBaseSeq();
+    }
+
+    /**
+     * 读取最后n条消息
+     */
+    public List<Region> readLast(int n) throws IOException {
+        return readSince(Math.max(1, nextSeq() - n), n);
+    }
+
+    /**
+     * 读取从序号seq开始的最多max条消息，每个分段一个Region
+     * @param seq 起始序号(包括)
+     * @param max 最多读取的消息数量
+     */
+    public synchronized List<Region> readSince(long seq, int max) throws IOException {
+        List<Region> regions = new ArrayList<>();
+        long from = Math.max(seq, firstSeq());
+        long to = Math.min(nextSeq(), from + max);
+        for (Segment segment : segments) {
+            if (from >= to) {
+                break;
+            }
+            if (segment.getEndSeq() <= from) {
+                continue;
+            }
+            long end = Math.min(to, segment.getEndSeq());
+            regions.add(segment.region(from, end));
+            from = end;
+        }
+        return regions;
+    }
+
+    /**
+     * 把映射内存中修改过的内容刷到磁盘，上次force之后切换过分段时，旧的分段也要刷
+     */
+    public synchronized void force() {
+        for (int i = dirtyFrom; i < segments.size(); i++) {
+            segments.get(i).force();
+        }
+        dirtyFrom = segments.size() - 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+}
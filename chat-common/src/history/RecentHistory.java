@@ -0,0 +1,197 @@
+package history;
+
+import buffer.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个房间最近的消息，保存在直接内存环形缓冲区中
+ * 保存的是编码好的消息，新客户端加入房间时原样复制出来发送，不需要读磁盘也不需要重新编码
+ * 消息条数和字节数都有上限，超过时丢弃最老的消息
+ * 缓冲区在第一次保存消息时才分配，放不下时翻倍直到字节数上限，没人说话的房间不占直接内存
+ * 所有方法都加锁，临界区里只有内存复制
+ */
+public class RecentHistory {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    // 第一次分配的最小字节数和条数
+    private static final int MIN_BYTES = 1024;
+    private static final int MIN_MESSAGES = 16;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    // 环形缓冲区，消息首尾相接，一条消息可能被拆成末尾和开头两段
+    private ByteBuffer ring = ByteBuffer.allocate(0);
+    // 每条消息的长度和序号，和消息一样是环形的
+    private int[] lengths = new int[0];
+    private long[] seqs = new long[0];
+    // 最老的消息在lengths中的下标
+    private int head;
+    // 消息条数
+    private int count;
+    // 最老的消息在ring中的位置
+    private int start;
+    // 所有消息的总字节数
+    private int used;
+
+    /**
+     * @param maxMessages 最多保存的消息条数
+     * @param maxBytes 最多保存的字节数，缓冲区最多扩容到这么大
+     */
+    public RecentHistory(int maxMessages, int maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 保存一条没有序号的消息
+     */
+    public void append(ByteBuffer message) {
+        append(0, message);
+    }
+
+    /**
+     * 保存一条消息，比整个缓冲区还大的消息不保存
+     * @param seq 消息在房间中的序号，必须递增
+     * @param message 读模式，position不会改变
+     */
+    public synchronized void append(long seq, ByteBuffer message) {
+        int length = message.remaining();
+        if (length > maxBytes || maxMessages == 0) {
+            return;
+        }
+        if (count == lengths.length && lengths.length < maxMessages) {
+            growIndex();
+        }
+        if (used + length > ring.capacity() && ring.capacity() < maxBytes) {
+            growRing(used + length);
+        }
+        while (count == lengths.length || used + length > ring.capacity()) {
+            evict();
+        }
+        int position = (start + used) % ring.capacity();
+        int first = Math.min(length, ring.capacity() - position);
+        ByteBuffer source = message.duplicate();
+        source.limit(source.position() + first);
+        ring.clear().position(position);
+        ring.put(source);
+        if (first < length) {
+            // 绕回开头
+            source.limit(message.limit());
+            ring.clear();
+            ring.put(source);
+        }
+        lengths[(head + count) % lengths.length] = length;
+        seqs[(head + count) % lengths.length] = seq;
+        count++;
+        used += length;
+    }
+
+    /**
+     * 扩容到至少能放下required字节，最多maxBytes，原有的消息复制到新缓冲区的开头
+     */
+    private void growRing(int required) {
+        long capacity = Math.max(ring.capacity() * 2L, MIN_BYTES);
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        ByteBuffer expanded = ByteBuffer.allocateDirect((int) Math.min(capacity, maxBytes));
+        copyTo(expanded);
+        ring = expanded;
+        start = 0;
+    }
+
+    private void growIndex() {
+        int capacity = Math.min(maxMessages, Math.max(lengths.length * 2, MIN_MESSAGES));
+        int[] newLengths = new int[capacity];
+        long[] newSeqs = new long[capacity];
+        for (int i = 0; i < count; i++) {
+            newLengths[i] = lengths[(head + i) % lengths.length];
+            newSeqs[i] = seqs[(head + i) % lengths.length];
+        }
+        lengths = newLengths;
+        seqs = newSeqs;
+        head = 0;
+    }
+
+    private void evict() {
+        start = (start + lengths[head]) % ring.capacity();
+        used -= lengths[head];
+        head = (head + 1) % lengths.length;
+        count--;
+    }
+
+    /**
+     * 把所有消息按从老到新的顺序复制到一个从缓冲区池借出的buffer中
+     * 复制出来之后新的消息可以继续覆盖环形缓冲区，不影响发送
+     * @param pool 缓冲区池
+     * @return 读模式的buffer，调用者负责归还，没有消息时返回null
+     */
+    public synchronized ByteBuffer copy(BufferPool pool) {
+        return used == 0 ? null : copyTo(pool.acquire(used));
+    }
+
+    /**
+     * 同copy(BufferPool)，复制到新分配的堆内存buffer中，由GC回收
+     */
+    public synchronized ByteBuffer copy() {
+        return used == 0 ? null : copyTo(ByteBuffer.allocate(used));
+    }
+
+    /**
+     * 复制序号大于seq的消息，用于断线重连后只补发缺少的部分
+     * @param seq 客户端已经收到的最后一条消息的序号
+     * @param pool 缓冲区池
+     * @return 读模式的buffer，调用者负责归还；没有更新的消息时返回不需要归还的空buffer；
+     *         最老的消息已经被淘汰、补不全时返回null
+     */
+    public synchronized ByteBuffer copySince(long seq, BufferPool pool) {
+        int skip = 0;
+        int offset = start;
+        int bytes = used;
+        while (skip < count && seqs[(head + skip) % lengths.length] <= seq) {
+            int length = lengths[(head + skip) % lengths.length];
+            offset = (offset + length) % ring.capacity();
+            bytes -= length;
+            skip++;
+        }
+        if (skip == 0 && count > 0 && seqs[head] > seq + 1) {
+            return null;
+        }
+        if (bytes == 0) {
+            return EMPTY;
+        }
+        return copyTo(pool.acquire(bytes), offset, bytes);
+    }
+
+    private ByteBuffer copyTo(ByteBuffer out) {
+        return copyTo(out, start, used);
+    }
+
+    private ByteBuffer copyTo(ByteBuffer out, int offset, int bytes) {
+        int first = Math.min(bytes, ring.capacity() - offset);
+        ring.clear().position(offset).limit(offset + first);
+        out.put(ring);
+        if (first < bytes) {
+            ring.clear().limit(bytes - first);
+            out.put(ring);
+        }
+        out.flip();
+        return out;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int bytes() {
+        return used;
+    }
+
+    /**
+     * @return 当前已经分配的缓冲区字节数
+     */
+    public synchronized int capacity() {
+        return ring.capacity();
+    }
+}
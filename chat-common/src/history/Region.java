@@ -0,0 +1,75 @@
+package history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 日志分段中连续的一段消息，内容就是编码好的帧，可以原样发给客户端
+ * 两种发送方式：
+ *  1. transferTo，由内核直接从文件复制到socket，不经过用户态(零拷贝)
+ *  2. slice，映射内存的只读切片，可以和普通消息一样放入发送队列
+ * 这段内容写入后不会再改变，所以多个线程可以同时读取不同的Region
+ */
+public class Region {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    // 在分段文件中的起始位置
+    private final int position;
+    private final int length;
+    private final long firstSeq;
+    private final int count;
+    // transferTo已经发送的字节数
+    private int transferred;
+
+    Region(FileChannel channel, MappedByteBuffer mapped, int position, int length, long firstSeq, int count) {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.position = position;
+        this.length = length;
+        this.firstSeq = firstSeq;
+        this.count = count;
+    }
+
+    /**
+     * 把还没有发送的部分写到target，非阻塞的socket可能只写出一部分
+     * @param target 目标通道
+     * @return 这次写出的字节数
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long written = channel.transferTo(position + transferred, length - transferred, target);
+        transferred += written;
+        return written;
+    }
+
+    /**
+     * 还没有发送的部分的只读切片，不复制内容
+     */
+    public ByteBuffer slice() {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(position + transferred).limit(position + length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 还没有发送的字节数
+     */
+    public int remaining() {
+        return length - transferred;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getFirstSeq() {
+        return firstSeq;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
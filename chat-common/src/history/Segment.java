@@ -0,0 +1,183 @@
+package history;
+
+import codec.VarintFrameCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 日志的一个分段文件，文件名是第一条消息的序号
+ * 文件创建时就分配好固定大小并整个映射到内存，没有写过的部分都是0，
+ * 每条记录都以varint长度开头，长度至少为1，所以读到0就是数据的结尾
+ */
+class Segment {
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    // 第一条消息的序号
+    private final long baseSeq;
+    // 消息数量
+    private int count;
+    // 下一条消息写入的位置
+    private int writePosition;
+    // 稀疏索引：第i项是序号 baseSeq + i * indexInterval 的消息在文件中的位置
+    private int[] index = new int[16];
+    private int indexSize;
+    private final int indexInterval;
+
+    private Segment(File file, FileChannel channel, MappedByteBuffer mapped, long baseSeq, int indexInterval) {
+        this.file = file;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.baseSeq = baseSeq;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * 打开分段文件，文件不存在时按照size创建
+     * 已有的文件从头扫描一遍，重建消息数量和稀疏索引
+     */
+    static Segment open(File file, long baseSeq, int size, int indexInterval) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = Math.max(channel.size(), size);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        Segment segment = new Segment(file, channel, mapped, baseSeq, indexInterval);
+        segment.recover();
+        return segment;
+    }
+
+    static String fileName(long baseSeq) {
+        return String.format("%020d.log", baseSeq);
+    }
+
+    private void recover() throws IOException {
+        ByteBuffer buffer = mapped.duplicate();
+        while (buffer.hasRemaining()) {
+            int position = buffer.position();
+            if (buffer.get(position) == 0) {
+                break;
+            }
+            int length = VarintFrameCodec.readVarint(buffer);
+            if (length <= 0 || length > buffer.remaining()) {
+                // 写到一半进程就退出了，之后的内容都不要
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            addToIndex(position);
+            count++;
+            writePosition = buffer.position();
+        }
+        // 清掉可能残留的半条记录，保证第一个字节为0的地方就是结尾
+        for (int i = writePosition; i < mapped.capacity() && mapped.get(i) != 0; i++) {
+            mapped.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * 追加一条记录，先写记录除了第一个字节之外的部分，最后写第一个字节，
+     * 进程在中间退出时第一个字节仍然是0，这条记录就当作没写过
+     * @param record 以varint长度开头的完整记录，读模式
+     * @return 空间不够时返回false
+     */
+    boolean append(ByteBuffer record) {
+        int length = record.remaining();
+        // 至少留一个0字节作为结尾标记
+        if (writePosition + length >= mapped.capacity()) {
+            return false;
+        }
+        byte first = record.get(record.position());
+        ByteBuffer target = mapped.duplicate();
+        target.position(writePosition + 1);
+        ByteBuffer rest = record.duplicate();
+        rest.position(rest.position() + 1);
+        target.put(rest);
+        mapped.put(writePosition, first);
+        addToIndex(writePosition);
+        count++;
+        writePosition += length;
+        return true;
+    }
+
+    private void addToIndex(int position) {
+        if (count % indexInterval == 0) {
+            if (indexSize == index.length) {
+                index = Arrays.copyOf(index, indexSize * 2);
+            }
+            index[indexSize++] = position;
+        }
+    }
+
+    /**
+     * 查找序号为seq的消息在文件中的位置，先查稀疏索引，再往后最多扫描indexInterval条
+     * @param seq 序号，必须在 [baseSeq, baseSeq + count] 之间，等于结尾时返回writePosition
+     */
+    int positionOf(long seq) throws IOException {
+        int ordinal = (int) (seq - baseSeq);
+        if (ordinal >= count) {
+            return writePosition;
+        }
+        int slot = ordinal / indexInterval;
+        int position = index[slot];
+        for (int i = slot * indexInterval; i < ordinal; i++) {
+            position = next(position);
+        }
+        return position;
+    }
+
+    /**
+     * @return position处的记录之后的位置
+     */
+    private int next(int position) throws IOException {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(position);
+        int length = VarintFrameCodec.readVarint(buffer);
+        return buffer.position() + length;
+    }
+
+    /**
+     * 序号从from(包括)到to(不包括)的消息
+     */
+    Region region(long from, long to) throws IOException {
+        int start = positionOf(from);
+        int end = positionOf(to);
+        return new Region(channel, mapped, start, end - start, from, (int) (to - from));
+    }
+
+    void force() {
+        mapped.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    /**
+     * 最后一条消息之后的序号
+     */
+    long getEndSeq() {
+        return baseSeq + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+}
@@ -0,0 +1,14 @@
+package history;
+
+import java.io.IOException;
+
+/**
+ * 消息中的序号不是日志的下一个序号，说明同一个房间前面的消息写入失败了
+ * 这条消息没有写入日志，但是它的序号不需要还回去，前面失败的消息已经把序号还回去了
+ */
+public class SeqMismatchException extends IOException {
+
+    public SeqMismatchException(long seq, long next) {
+        super("消息序号" + seq + "不是日志的下一个序号" + next);
+    }
+}
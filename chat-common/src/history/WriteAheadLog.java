@@ -0,0 +1,288 @@
+package history;
+
+import buffer.SharedBuffer;
+import logging.AsyncLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 组提交(group commit)的预写日志
+ * 所有连接的消息都交给一个写线程，写线程每次把队列里攒下的消息一起追加到各自房间的日志，
+ * 然后每个日志只force一次，再依次回调，回调里才能确认和转发消息
+ * 这样每秒能持久化的消息数量不再受限于每秒能做多少次fsync
+ * 不需要等待：force进行的时候新的消息会继续在队列里攒成下一批
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * 持久化完成的回调，在写线程中调用，不能阻塞
+     */
+    public interface Callback {
+        /**
+         * @param seq 消息在房间日志中的序号，失败时为-1
+         * @param error 失败的原因，成功时为null
+         */
+        void completed(long seq, IOException error);
+    }
+
+    private static class Entry {
+        private final MessageLog log;
+        private final SharedBuffer message;
+        private final Callback callback;
+        // 消息中已经编好的序号，-1表示不检查，按日志的序号
+        private final long expectedSeq;
+        private long seq = -1;
+        private IOException error;
+        // 是否已经回调过，每条消息只回调一次
+        private boolean done;
+
+        private Entry(MessageLog log, long expectedSeq, SharedBuffer message, Callback callback) {
+            this.log = log;
+            this.expectedSeq = expectedSeq;
+            this.message = message;
+            this.callback = callback;
+        }
+    }
+
+    // 放入队列表示写线程该退出了
+    private static final Entry CLOSE = new Entry(null, -1, null, null);
+
+    private final Durability durability;
+    // 一批最多的字节数
+    private final int maxBatchBytes;
+    // 攒一批最多等待的时间，0表示只取队列中已有的消息
+    private final long maxDelayNanos;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    // 写线程已经退出，之后提交的消息不会再被处理
+    private volatile boolean stopped;
+
+    // 已经持久化的消息数
+    private final LongAdder appended = new LongAdder();
+    // 提交的批数，也就是force的次数
+    private final LongAdder batches = new LongAdder();
+    // 写线程中不直接写控制台
+    private final AsyncLogger logger = AsyncLogger.getDefault();
+
+    /**
+     * @param durability 持久化方式，PER_MESSAGE时每批只有一条消息，NONE时不force
+     * @param maxBatchBytes 一批最多的字节数
+     * @param maxDelayMillis 攒一批最多等待的毫秒数
+     */
+    public WriteAheadLog(Durability durability, int maxBatchBytes, long maxDelayMillis) {
+        this.durability = durability;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.writer = new Thread(this::run, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 提交一条消息，持久化之后在写线程中回调，每条消息一定会回调一次
+     * 回调之前调用者不能释放message
+     * 已经关闭或者写线程已经退出时，在当前线程中立即以失败回调
+     * @param log 房间的日志
+     * @param message 以varint长度开头的完整帧
+     * @param callback 回调
+     */
+    public void submit(MessageLog log, SharedBuffer message, Callback callback) {
+        submit(log, -1, message, callback);
+    }
+
+    /**
+     * 提交一条已经编好序号的消息，只有序号是日志的下一个序号时才写入，
+     * 同一个房间前面的消息写入失败时，后面已经提交的消息都以SeqMismatchException失败，不会以错误的序号写入
+     * @param log 房间的日志
+     * @param seq 消息中的序号，-1表示不检查
+     * @param message 以varint长度开头的完整帧
+     * @param callback 回调
+     */
+    public void submit(MessageLog log, long seq, SharedBuffer message, Callback callback) {
+        if (closed || stopped) {
+            callback.completed(-1, new IOException("预写日志已经关闭"));
+            return;
+        }
+        Entry entry = new Entry(log, seq, message, callback);
+        queue.offer(entry);
+        // 写线程退出时先设置stopped再清空队列，和清空同时放入的消息要么被写线程取走并回调，
+        // 要么在这里取回并回调，不会没有回调
+        if (stopped && queue.remove(entry)) {
+            callback.completed(-1, new IOException("预写日志已经关闭"));
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Entry first = queue.take();
+                if (first == CLOSE) {
+                    break;
+                }
+                batch.add(first);
+                boolean close = fill(batch, first.message.readableBytes());
+                try {
+                    commit(batch);
+                } catch (Throwable e) {
+                    // 写线程不能因为一批消息出错而退出，否则之后提交的消息永远等不到回调，共享buffer也不会释放
+                    logger.error("写入预写日志出错", e);
+                    fail(batch, new IOException("写入预写日志失败", e));
+                }
+                batch.clear();
+                if (close) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            // 关闭之后还没处理的消息都算失败，包括攒到一半的这一批
+            fail(batch, new IOException("预写日志已经关闭"));
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                if (entry != CLOSE) {
+                    complete(entry, -1, new IOException("预写日志已经关闭"));
+                }
+            }
+        }
+    }
+
+    /**
+     * 把队列中的消息加入这一批，直到超过大小或者等待时间
+     * @return 是否遇到了关闭标记
+     */
+    private boolean fill(List<Entry> batch, int bytes) throws InterruptedException {
+        if (durability == Durability.PER_MESSAGE) {
+            return false;
+        }
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (bytes < maxBatchBytes) {
+            Entry entry = queue.poll();
+            if (entry == null && maxDelayNanos > 0) {
+                long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    entry = queue.poll(wait, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (entry == null) {
+                return false;
+            }
+            if (entry == CLOSE) {
+                return true;
+            }
+            batch.add(entry);
+            bytes += entry.message.readableBytes();
+        }
+        return false;
+    }
+
+    /**
+     * 追加这一批的所有消息，每个涉及的日志force一次，然后按顺序回调
+     */
+    private void commit(List<Entry> batch) {
+        List<MessageLog> logs = new ArrayList<>();
+        for (Entry entry : batch) {
+            try {
+                if (entry.expectedSeq < 0) {
+                    entry.seq = entry.log.append(entry.message.duplicate());
+                } else {
+                    entry.log.append(entry.message.duplicate(), entry.expectedSeq);
+                    entry.seq = entry.expectedSeq;
+                }
+                if (!logs.contains(entry.log)) {
+                    logs.add(entry.log);
+                }
+            } catch (IOException e) {
+                entry.error = e;
+            } catch (RuntimeException e) {
+                entry.error = new IOException(e);
+            }
+        }
+        if (durability != Durability.NONE) {
+            for (MessageLog log : logs) {
+                try {
+                    log.force();
+                } catch (UncheckedIOException e) {
+                    for (Entry entry : batch) {
+                        if (entry.log == log && entry.error == null) {
+                            entry.error = e.getCause();
+                        }
+                    }
+                }
+            }
+        }
+        batches.increment();
+        for (Entry entry : batch) {
+            if (entry.error == null) {
+                appended.increment();
+                complete(entry, entry.seq, null);
+            } else {
+                complete(entry, -1, entry.error);
+            }
+        }
+    }
+
+    /**
+     * 回调还没有回调过的消息，一个回调抛出的异常不影响其他消息
+     */
+    private void complete(Entry entry, long seq, IOException error) {
+        if (entry.done) {
+            return;
+        }
+        entry.done = true;
+        try {
+            entry.callback.completed(seq, error);
+        } catch (RuntimeException e) {
+            logger.error("预写日志回调出错", e);
+        }
+    }
+
+    /**
+     * 这一批中还没有回调的消息都以失败回调
+     */
+    private void fail(List<Entry> batch, IOException error) {
+        for (Entry entry : batch) {
+            complete(entry, -1, error);
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * 处理完已经提交的消息后停止写线程
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.offer(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
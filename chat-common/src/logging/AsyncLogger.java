@@ -0,0 +1,281 @@
+package logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步批量日志
+ * 调用线程(selector线程、I/O线程)只把一条已经拼好的日志放入无锁环形缓冲区，不做任何I/O；
+ * 后台写线程把攒下的日志一起格式化、写入文件，文件超过大小后滚动
+ * 缓冲区满时丢弃日志并计数，绝不阻塞调用线程
+ * 每条消息一条的日志可以用sampled()采样，只记录其中一部分
+ */
+public class AsyncLogger implements Closeable {
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    // 缓冲区为空时写线程休眠的时间，日志最多晚这么久写出
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // 一批最多格式化的日志条数
+    private static final int MAX_BATCH = 1024;
+
+    private static volatile AsyncLogger defaultLogger;
+
+    private static final class Event {
+        private final long time;
+        private final Level level;
+        private final String thread;
+        private final String message;
+        private final Throwable error;
+
+        private Event(Level level, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private final Level level;
+    // 每sampleRate条采样的日志记录一条
+    private final int sampleRate;
+    private final RingBuffer<Event> ring;
+    // 日志文件，为null时写到标准输出
+    private final File file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    private long fileBytes;
+    private final Thread writer;
+    private volatile boolean closed;
+    // 缓冲区满时丢弃的日志数
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param level 最低记录的级别
+     * @param sampleRate 采样率，1表示全部记录
+     * @param capacity 环形缓冲区的容量
+     * @param file 日志文件，为null时写到标准输出
+     * @param maxFileBytes 单个文件的最大字节数，超过后滚动
+     * @param maxFiles 最多保留的文件数(包括当前文件)
+     */
+    public AsyncLogger(Level level, int sampleRate, int capacity, File file, long maxFileBytes, int maxFiles)
+            throws IOException {
+        this.level = level;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.ring = new RingBuffer<>(capacity);
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        if (file != null) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("无法创建日志目录：" + parent);
+            }
+            this.out = new FileOutputStream(file, true);
+            this.fileBytes = file.length();
+        } else {
+            this.out = System.out;
+        }
+        this.writer = new Thread(this::run, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 进程共用的日志，第一次调用时按系统属性创建：
+     * chat.log.level 级别，默认INFO
+     * chat.log.sample 每条消息的日志的采样率，默认1
+     * chat.log.file 日志文件，默认写到标准输出
+     * chat.log.maxFileBytes 单个文件的最大字节数，默认64MB
+     * chat.log.maxFiles 最多保留的文件数，默认5
+     * chat.log.capacity 环形缓冲区的容量，默认65536
+     */
+    public static AsyncLogger getDefault() {
+        AsyncLogger logger = defaultLogger;
+        if (logger == null) {
+            synchronized (AsyncLogger.class) {
+                logger = defaultLogger;
+                if (logger == null) {
+                    logger = fromSystemProperties();
+                    Runtime.getRuntime().addShutdownHook(new Thread(logger::close, "async-logger-shutdown"));
+                    defaultLogger = logger;
+                }
+            }
+        }
+        return logger;
+    }
+
+    private static AsyncLogger fromSystemProperties() {
+        String path = System.getProperty("chat.log.file");
+        try {
+            return new AsyncLogger(Level.valueOf(System.getProperty("chat.log.level", Level.INFO.name())),
+                    Integer.getInteger("chat.log.sample", 1),
+                    Integer.getInteger("chat.log.capacity", 65536),
+                    path == null ? null : new File(path),
+                    Long.getLong("chat.log.maxFileBytes", 64L * 1024 * 1024),
+                    Integer.getInteger("chat.log.maxFiles", 5));
+        } catch (IOException e) {
+            throw new IllegalStateException("无法创建日志文件：" + path, e);
+        }
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * 每条消息都会调用的日志先用这个方法判断，没有被采样时不需要拼接字符串
+     * @return 这一条是否需要记录
+     */
+    public boolean sampled(Level level) {
+        return isEnabled(level) && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * 放入环形缓冲区，缓冲区满或者已经关闭时丢弃
+     */
+    public void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        if (!ring.offer(new Event(level, message, error))) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            boolean stopping = closed;
+            int count = 0;
+            Event event;
+            while (count < MAX_BATCH && (event = ring.poll()) != null) {
+                format(event, batch);
+                count++;
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            }
+            if (count == 0) {
+                if (stopping) {
+                    // 关闭之前放入的日志都已经写完
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+        if (file != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void format(Event event, StringBuilder out) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(event.time), out);
+        out.append(' ').append(event.level).append(" [").append(event.thread).append("] ")
+                .append(event.message).append('\n');
+        if (event.error != null) {
+            out.append(event.error).append('\n');
+            for (StackTraceElement element : event.error.getStackTrace()) {
+                out.append("\tat ").append(element).append('\n');
+            }
+        }
+    }
+
+    /**
+     * 写出一批日志，写完一批才flush一次
+     */
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file != null && fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+                roll();
+            }
+            out.write(bytes);
+            out.flush();
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            // 写日志失败不能影响服务器
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 滚动：chat.log.(n-1) -> chat.log.n，...，chat.log -> chat.log.1，最老的文件被删除
+     */
+    private void roll() throws IOException {
+        out.close();
+        File oldest = new File(file.getPath() + "." + (maxFiles - 1));
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("无法删除日志文件：" + oldest);
+        }
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            File source = new File(file.getPath() + "." + i);
+            if (source.exists() && !source.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("无法重命名日志文件：" + source);
+            }
+        }
+        if (maxFiles > 1 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            throw new IOException("无法重命名日志文件：" + file);
+        }
+        if (maxFiles == 1 && !file.delete()) {
+            throw new IOException("无法删除日志文件：" + file);
+        }
+        out = new FileOutputStream(file, true);
+        fileBytes = 0;
+    }
+
+    /**
+     * 写完已经放入的日志后停止写线程
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package logging;
+
+/**
+ * 日志级别，低于配置级别的日志在调用处就被丢弃，不会格式化也不会入队
+ */
+public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF
+}
@@ -0,0 +1,80 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的多生产者单消费者环形缓冲区，入队和出队都不加锁
+ * 每个槽位有一个序号：等于生产位置时可以写入，等于生产位置+1时可以读出，
+ * 读出后改为下一圈的生产位置，生产者之间只在tail上CAS
+ * 满了直接返回false，调用者决定丢弃，不会阻塞生产者
+ * @param <E> 元素类型
+ */
+public class RingBuffer<E> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // 下一个生产位置，多个生产者竞争
+    private final AtomicLong tail = new AtomicLong();
+    // 下一个消费位置，只有消费者线程访问
+    private long head;
+
+    /**
+     * @param capacity 容量，向上取整到2的幂
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 入队，可以被多个线程同时调用
+     * @return 缓冲区满时返回false
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    // 发布：消费者看到新的序号时一定能看到元素
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // 上一圈的元素还没有被消费
+                return false;
+            }
+            // 其他生产者抢先占用了这个位置，重试
+        }
+    }
+
+    /**
+     * 出队，只能由一个消费者线程调用
+     * @return 没有元素时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return element;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
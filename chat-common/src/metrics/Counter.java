@@ -0,0 +1,23 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 只增不减的计数器，基于LongAdder，多个线程同时累加时分散到不同的单元，不会争用同一个缓存行
+ */
+public class Counter {
+
+    private final LongAdder adder = new LongAdder();
+
+    public void increment() {
+        adder.increment();
+    }
+
+    public void add(long n) {
+        adder.add(n);
+    }
+
+    public long get() {
+        return adder.sum();
+    }
+}
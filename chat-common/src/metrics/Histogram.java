@@ -0,0 +1,149 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HdrHistogram风格的对数-线性直方图，用来统计延迟的分位数
+ * 小于2^precisionBits的值每个值一个桶；更大的值按2的幂分段，每段再线性分成2^(precisionBits-1)个桶，
+ * 所以任何值的相对误差都不超过1/2^(precisionBits-1)，桶的数量只和值的范围的对数成正比
+ * 记录只是一次数组下标计算加一次原子自增，可以被多个线程同时调用，不会分配内存
+ */
+public class Histogram {
+
+    private final int precisionBits;
+    // 每段的桶数
+    private final int halfCount;
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue 能区分的最大值，更大的值计入最后一个桶，但仍然记录为最大值
+     * @param precisionBits 精度，7表示相对误差不超过1/64
+     */
+    public Histogram(long highestTrackableValue, int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 20) {
+            throw new IllegalArgumentException("precisionBits必须在1到20之间：" + precisionBits);
+        }
+        this.precisionBits = precisionBits;
+        this.halfCount = 1 << (precisionBits - 1);
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    /**
+     * 记录一个非负的值，负数按0记录
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(Math.min(value, highestTrackableValue)));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private int indexOf(long value) {
+        if (value < halfCount << 1) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits + 1;
+        return shift * halfCount + (int) (value >>> shift);
+    }
+
+    /**
+     * @return 下标为index的桶中的最大值
+     */
+    private long highestEquivalentValue(int index) {
+        if (index < halfCount << 1) {
+            return index;
+        }
+        int shift = index / halfCount - 1;
+        long sub = index - (long) shift * halfCount;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param percentile 0到100之间的百分位
+     * @return 至少percentile%的值都不大于的值，误差不超过精度；没有记录过值时返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                // 最后一个桶包括所有超出范围的值
+                return i == counts.length() - 1 ? getMax() : Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                total += count;
+                // 用桶的中间值近似
+                long high = highestEquivalentValue(i);
+                long low = i == 0 ? 0 : highestEquivalentValue(i - 1) + 1;
+                sum += count * ((low + high) / 2.0);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return 所有记录的值的精确总和
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 把另一个同样配置的直方图的记录加到这个直方图中
+     */
+    public void add(Histogram other) {
+        if (other.counts.length() != counts.length() || other.precisionBits != precisionBits) {
+            throw new IllegalArgumentException("直方图的范围或精度不同");
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.getTotalCount());
+        sum.addAndGet(other.getSum());
+        max.accumulateAndGet(other.getMax(), Math::max);
+    }
+
+    /**
+     * 清空所有记录，和record同时调用时可能丢失少量记录
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
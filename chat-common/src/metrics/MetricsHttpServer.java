@@ -0,0 +1,141 @@
+package metrics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * 给Prometheus抓取指标的简易HTTP服务器，和webserver-tutorial中的Connector一样用selector监听连接
+ * 抓取频率很低，所以接受连接后直接在本线程中阻塞读取请求并写回响应，处理完就关闭连接
+ * 只支持GET /metrics，其他路径返回404
+ */
+public class MetricsHttpServer implements Runnable, Closeable {
+
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    // 读取请求的超时时间，避免一个不发请求的连接卡住抓取
+    private static final int READ_TIMEOUT = 1000;
+
+    private final MetricsRegistry registry;
+    private final int port;
+    private ServerSocketChannel server;
+    private Selector selector;
+
+    public MetricsHttpServer(MetricsRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    /**
+     * 绑定端口并在后台线程中运行
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(new InetSocketAddress(port));
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        Thread thread = new Thread(this, "metrics-http");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("指标服务器启动，地址http://localhost:" + port + PATH);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey key : selectionKeys) {
+                    if (key.isAcceptable()) {
+                        accept();
+                    }
+                }
+                selectionKeys.clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // 服务器关闭
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null) {
+            return;
+        }
+        // accept返回的channel默认是阻塞的
+        try (Socket socket = client.socket()) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            handle(socket);
+        } catch (IOException e) {
+            // 单个抓取失败不影响服务器
+            e.printStackTrace();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        // 读完请求头，不关心内容
+        String header;
+        while ((header = reader.readLine()) != null && !header.isEmpty()) {
+            // 跳过
+        }
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if (parts[0].equals("GET") && path.equals(PATH)) {
+            StringBuilder body = new StringBuilder(4096);
+            registry.writeTo(body);
+            respond(socket.getOutputStream(), "200 OK", body.toString());
+        } else {
+            respond(socket.getOutputStream(), "404 Not Found", "只支持GET " + PATH + "\n");
+        }
+    }
+
+    private void respond(OutputStream output, String status, String body) throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        output.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        output.write(content);
+        output.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
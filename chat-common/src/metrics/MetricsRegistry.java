@@ -0,0 +1,130 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 指标注册表，按Prometheus文本格式导出
+ * 计数器和直方图在热点路径上更新，只有抓取时才遍历和格式化；
+ * 瞬时值(连接数、队列长度)注册为gauge，别的组件自己累加的值注册为counter，都在抓取时才调用LongSupplier读取
+ * 直方图记录的是纳秒，导出时换算成秒，作为summary导出分位数
+ */
+public class MetricsRegistry {
+
+    // 导出的分位数
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // 直方图能区分的最大值和精度：1分钟，相对误差不超过1/64
+    private static final long MAX_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int PRECISION_BITS = 7;
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Metric {
+        private final Type type;
+        private final String help;
+        private final Object value;
+
+        private Metric(Type type, String help, Object value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // 按名称排序，导出的顺序固定
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * 注册或者取得已经注册的计数器，名称按Prometheus的习惯以_total结尾
+     */
+    public Counter counter(String name, String help) {
+        Object value = register(name, Type.COUNTER, help, new Counter()).value;
+        if (!(value instanceof Counter)) {
+            throw new IllegalArgumentException("指标" + name + "已经注册为读取别处计数的counter");
+        }
+        return (Counter) value;
+    }
+
+    /**
+     * 注册一个由别的组件累加的计数器，抓取时在HTTP线程中调用supplier，supplier必须是线程安全的，并且只增不减
+     * 名称按Prometheus的习惯以_total结尾
+     */
+    public void counter(String name, String help, LongSupplier supplier) {
+        register(name, Type.COUNTER, help, supplier);
+    }
+
+    /**
+     * 注册一个瞬时值，抓取时在HTTP线程中调用supplier，所以supplier必须是线程安全的
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        register(name, Type.GAUGE, help, supplier);
+    }
+
+    /**
+     * 注册或者取得已经注册的直方图，记录纳秒，名称按Prometheus的习惯以_seconds结尾
+     */
+    public Histogram histogram(String name, String help) {
+        return (Histogram) register(name, Type.SUMMARY, help, new Histogram(MAX_NANOS, PRECISION_BITS)).value;
+    }
+
+    private Metric register(String name, Type type, String help, Object value) {
+        Metric metric = metrics.computeIfAbsent(name, key -> new Metric(type, help, value));
+        if (metric.type != type) {
+            throw new IllegalArgumentException("指标" + name + "已经注册为" + metric.type.name);
+        }
+        return metric;
+    }
+
+    /**
+     * 按Prometheus文本格式(0.0.4)输出所有指标
+     */
+    public void writeTo(StringBuilder out) {
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(metric.type.name).append('\n');
+            switch (metric.type) {
+                case COUNTER:
+                    long count = metric.value instanceof Counter ? ((Counter) metric.value).get()
+                            : ((LongSupplier) metric.value).getAsLong();
+                    out.append(name).append(' ').append(count).append('\n');
+                    break;
+                case GAUGE:
+                    out.append(name).append(' ').append(((LongSupplier) metric.value).getAsLong()).append('\n');
+                    break;
+                case SUMMARY:
+                    Histogram histogram = (Histogram) metric.value;
+                    for (double quantile : QUANTILES) {
+                        out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                                .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+                    }
+                    out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+                    out.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+                    break;
+                default:
+            }
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        writeTo(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶，限制一个连接每秒的消息数或者字节数
+ * 令牌按固定速率补充，最多攒到容量(允许的突发量)；不需要后台线程，每次使用时按经过的时间补充
+ * 不是线程安全的，由拥有这个连接的线程调用，时间和System.nanoTime同一个时钟
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double tokensPerNano;
+    private final long capacity;
+    // 当前的令牌数，可以是负数，表示预支了还没有补充上的令牌
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param capacity 最多攒下的令牌数，也是初始的令牌数
+     * @param now 当前时间
+     */
+    public TokenBucket(long ratePerSecond, long capacity, long now) {
+        this.tokensPerNano = (double) ratePerSecond / NANOS_PER_SECOND;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * @return 按经过的时间补充之后可以使用的整数令牌数，没有时返回0
+     */
+    public long available(long now) {
+        refill(now);
+        return Math.max(0, (long) Math.floor(tokens));
+    }
+
+    /**
+     * 令牌够时取走，不够时什么也不做
+     * @return 是否取到了令牌
+     */
+    public boolean tryAcquire(long count, long now) {
+        refill(now);
+        if (tokens < count) {
+            return false;
+        }
+        tokens -= count;
+        return true;
+    }
+
+    /**
+     * 不管够不够都取走，不够的部分预支
+     * 用在数据已经读进来、只能事后计费的地方，预支的部分通过暂停读取来偿还
+     * @return 还要等多少纳秒令牌才不是负数，0表示没有预支
+     */
+    public long consume(long count, long now) {
+        refill(now);
+        tokens -= count;
+        return nanosUntilAvailable(0);
+    }
+
+    /**
+     * @return 令牌数达到count还需要的纳秒数，已经达到时返回0
+     */
+    public long nanosUntilAvailable(long count) {
+        if (tokens >= count) {
+            return 0;
+        }
+        return (long) Math.ceil((count - tokens) / tokensPerNano);
+    }
+
+    /**
+     * @return 当前的令牌数，没有按时间补充，只用于测试和监控
+     */
+    public long getTokens() {
+        return (long) Math.floor(tokens);
+    }
+}
@@ -0,0 +1,78 @@
+package session;
+
+/**
+ * 心跳和空闲断开的判断，三个服务器共用
+ * 这里只做时间的计算，发PING、断开连接和在时间轮中安排检查都由调用者完成
+ * 连接收到数据时只更新最后读的时间，到期检查时才按最后读的时间决定要做什么、下一次什么时候再检查
+ */
+public class IdlePolicy {
+
+    /**
+     * 一次检查的结果
+     */
+    public enum Action {
+        // 还没有到时间，只需要重新安排检查
+        NONE,
+        // 超过心跳间隔没有收到数据，发送一次PING
+        PING,
+        // 超过idleTimeout没有收到数据，断开
+        CLOSE
+    }
+
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+
+    /**
+     * @param heartbeatNanos 多久没有收到数据时发送PING，0表示不发送
+     * @param idleTimeoutNanos 多久没有收到数据时断开，0表示不断开
+     */
+    public IdlePolicy(long heartbeatNanos, long idleTimeoutNanos) {
+        this.heartbeatNanos = heartbeatNanos;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /**
+     * @return 是否开启了心跳或者空闲断开，都没有开启时不需要安排检查
+     */
+    public boolean isEnabled() {
+        return heartbeatNanos > 0 || idleTimeoutNanos > 0;
+    }
+
+    /**
+     * 到期时应该做什么
+     * @param lastRead 最后一次收到数据的时间(System.nanoTime)
+     * @param pinged 这次空闲期间是否已经发过PING
+     * @param now 当前时间
+     */
+    public Action check(long lastRead, boolean pinged, long now) {
+        long idle = now - lastRead;
+        if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+            return Action.CLOSE;
+        }
+        if (heartbeatNanos > 0 && !pinged && idle >= heartbeatNanos) {
+            return Action.PING;
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * 下一次检查的时间
+     * PING还没有回复时也要按心跳间隔再检查：回复的PONG只更新最后读的时间，不会重新安排检查，
+     * 不检查的话只开启心跳、没有开启空闲断开时，发过一次PING之后就再也不会发了
+     * @param lastRead 最后一次收到数据的时间
+     * @param pinged 这次空闲期间是否已经发过PING
+     * @param now 当前时间
+     * @return 下一次检查的时间，Long.MAX_VALUE表示不需要再检查
+     */
+    public long nextCheck(long lastRead, boolean pinged, long now) {
+        long deadline = Long.MAX_VALUE;
+        if (heartbeatNanos > 0) {
+            // 发过PING时最后读的时间已经过了心跳间隔，再过一个间隔看有没有收到回复
+            deadline = (pinged ? Math.max(lastRead, now) : lastRead) + heartbeatNanos;
+        }
+        if (idleTimeoutNanos > 0) {
+            deadline = Math.min(deadline, lastRead + idleTimeoutNanos);
+        }
+        return deadline;
+    }
+}
@@ -0,0 +1,126 @@
+package session;
+
+import java.util.Arrays;
+
+/**
+ * 按连接ID保存会话的表，ID是从0开始的稠密整数，断开的连接的ID会被新连接复用
+ * 每个会话经常访问的字段按列放在基本类型数组中(struct of arrays)：状态位、最后读的时间、待发送字节数，
+ * 不需要装箱的key，也不需要每个会话一个Map.Entry，加入和删除都是O(1)，
+ * 连接很多时GC要扫描的对象和引用也少得多
+ * 不是线程安全的，NIO中每个Reactor一个，只由Reactor的线程访问
+ * @param <S> 会话类型，比如NIO的Connection
+ */
+public class SessionTable<S> {
+
+    private Object[] sessions;
+    // 状态位，含义由使用者决定
+    private byte[] states;
+    // 最后一次收到数据的时间(System.nanoTime)
+    private long[] lastSeen;
+    // 待发送队列中的字节数
+    private int[] queuedBytes;
+    // 已经释放的ID，作为栈使用，最近释放的最先复用，对应的数组元素还在缓存中
+    private int[] freeIds;
+    private int freeCount;
+    // 还没有用过的最小ID
+    private int nextId;
+    private int size;
+
+    /**
+     * @param initialCapacity 初始容量，不够时翻倍
+     */
+    public SessionTable(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        sessions = new Object[capacity];
+        states = new byte[capacity];
+        lastSeen = new long[capacity];
+        queuedBytes = new int[capacity];
+        freeIds = new int[capacity];
+    }
+
+    /**
+     * 加入一个会话，优先复用已经释放的ID
+     * @return 会话的ID
+     */
+    public int add(S session) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextId == sessions.length) {
+                grow();
+            }
+            id = nextId++;
+        }
+        sessions[id] = session;
+        size++;
+        return id;
+    }
+
+    /**
+     * 删除会话并清空它的字段，ID之后会被复用
+     * @param session 只有ID仍然对应这个会话时才删除，重复删除没有影响
+     * @return 是否删除了
+     */
+    public boolean remove(int id, S session) {
+        if (get(id) != session || session == null) {
+            return false;
+        }
+        sessions[id] = null;
+        states[id] = 0;
+        lastSeen[id] = 0;
+        queuedBytes[id] = 0;
+        freeIds[freeCount++] = id;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return ID对应的会话，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public S get(int id) {
+        return id >= 0 && id < nextId ? (S) sessions[id] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return sessions.length;
+    }
+
+    public int getState(int id) {
+        return states[id];
+    }
+
+    public void setState(int id, int state) {
+        states[id] = (byte) state;
+    }
+
+    public long getLastSeen(int id) {
+        return lastSeen[id];
+    }
+
+    public void setLastSeen(int id, long nanos) {
+        lastSeen[id] = nanos;
+    }
+
+    public int getQueuedBytes(int id) {
+        return queuedBytes[id];
+    }
+
+    public void addQueuedBytes(int id, int delta) {
+        queuedBytes[id] += delta;
+    }
+
+    private void grow() {
+        int capacity = sessions.length * 2;
+        sessions = Arrays.copyOf(sessions, capacity);
+        states = Arrays.copyOf(states, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        queuedBytes = Arrays.copyOf(queuedBytes, capacity);
+        freeIds = Arrays.copyOf(freeIds, capacity);
+    }
+}
@@ -0,0 +1,66 @@
+package session;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 用户ID到连接的索引，BIO/NIO/AIO服务器共用
+ * 私聊时只需要一次查找，不需要遍历所有连接
+ * @param <C> 连接类型，比如NIO的Connection、AIO的ClientHandler、BIO的Writer
+ */
+public class UserIndex<C> {
+
+    // 用户ID最长32个字符
+    private static final int MAX_USER_ID_LENGTH = 32;
+
+    private final ConcurrentMap<String, C> users = new ConcurrentHashMap<>();
+
+    /**
+     * 登录，同一个用户ID同一时间只能有一个连接
+     * @param userId 用户ID
+     * @param connection 连接
+     * @return 是否登录成功，用户ID已被占用时返回false
+     */
+    public boolean login(String userId, C connection) {
+        C existing = users.putIfAbsent(userId, connection);
+        return existing == null || existing == connection;
+    }
+
+    /**
+     * 登出，只有用户ID仍然对应这个连接时才删除
+     * @param userId 用户ID，可以为null
+     * @param connection 连接
+     */
+    public void logout(String userId, C connection) {
+        if (userId != null) {
+            users.remove(userId, connection);
+        }
+    }
+
+    /**
+     * @param userId 用户ID
+     * @return 对应的连接，不在线时返回null
+     */
+    public C lookup(String userId) {
+        return users.get(userId);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * 用户ID不能为空，不能包含空白字符，不能太长
+     */
+    public static boolean isValidUserId(String userId) {
+        if (userId == null || userId.isEmpty() || userId.length() > MAX_USER_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < userId.length(); i++) {
+            if (Character.isWhitespace(userId.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package timer;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 由一个后台线程推进的时间轮，给没有事件循环的服务器(BIO、AIO)使用
+ * 任意线程都可以安排任务，任务先放入无锁队列，由时间轮线程在下一个tick放入时间轮，
+ * 所有连接共用一个线程，不需要每个socket一个ScheduledExecutorService的任务
+ * 任务在时间轮线程中执行，应该很快返回；不提供取消，任务执行时自己检查是否还需要做
+ */
+public class HashedWheelTimer implements Runnable, Closeable {
+
+    private static final class Pending {
+        private final Runnable task;
+        private final long deadline;
+
+        private Pending(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final TimingWheel wheel;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * @param tickNanos 每个tick的纳秒数
+     * @param wheelSize 桶的数量
+     * @param name 时间轮线程的名称
+     */
+    public HashedWheelTimer(long tickNanos, int wheelSize, String name) {
+        this.tickNanos = tickNanos;
+        this.wheel = new TimingWheel(tickNanos, wheelSize, System.nanoTime());
+        this.worker = new Thread(this, name);
+        worker.setDaemon(true);
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * 安排一个任务，线程安全，最多晚一个tick执行
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        pending.offer(new Pending(task, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            long now = System.nanoTime();
+            wheel.advance(now);
+            Pending task;
+            while ((task = pending.poll()) != null) {
+                wheel.schedule(guard(task.task), task.deadline - now);
+            }
+            LockSupport.parkNanos(this, Math.max(1, Math.min(tickNanos, wheel.nanosUntilNextTick(System.nanoTime()))));
+        }
+    }
+
+    /**
+     * 一个任务失败不能影响同一个tick中的其他任务
+     */
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        };
+    }
+
+    /**
+     * 停止时间轮线程，还没有执行的任务被丢弃
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+}
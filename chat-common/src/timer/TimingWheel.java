@@ -0,0 +1,169 @@
+package timer;
+
+/**
+ * 哈希时间轮，用来给大量连接安排空闲检查和心跳
+ * 时间被分成固定长度的tick，每个tick对应环上的一个桶，定时任务按到期的tick放入桶中的双向链表，
+ * 安排和取消都是O(1)，每个tick只处理一个桶，和定时任务总数无关
+ * 不是线程安全的，由拥有它的线程(比如Reactor的事件循环)调用schedule和advance，
+ * 不需要像ScheduledExecutorService那样给每个连接一个任务和一个堆中的节点
+ */
+public class TimingWheel {
+
+    /**
+     * 一个定时任务，也是桶中链表的节点
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+        private boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * 取消，只能在拥有时间轮的线程中调用，可以重复调用
+         */
+        public void cancel() {
+            cancelled = true;
+            if (bucket != null) {
+                bucket.remove(this);
+                size--;
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class Bucket {
+        private TimingWheel.Timeout head;
+        private TimingWheel.Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startNanos;
+    // 已经处理完的tick数
+    private long tick;
+    // 时间轮当前的时间，也就是上一次advance传入的时间，schedule的延迟从这个时间算起
+    private long currentNanos;
+    private int size;
+
+    /**
+     * @param tickNanos 每个tick的纳秒数，也是定时的精度
+     * @param wheelSize 桶的数量，向上取整到2的幂，超过一圈的任务在桶中等待下一圈
+     * @param startNanos 起始时间，和advance传入的时间同一个时钟(System.nanoTime)
+     */
+    public TimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startNanos = startNanos;
+        this.currentNanos = startNanos;
+    }
+
+    /**
+     * 安排一个任务，在advance中执行，最多晚一个tick
+     * @param task 任务
+     * @param delayNanos 从当前时间轮的时间算起的延迟
+     * @return 可以取消的定时任务
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        // 按到期的时间向上取整，而不是在已经处理完的tick上加延迟的tick数，
+        // 当前时间可能已经过了这个tick的大半，那样任务最多会提前一个tick执行
+        long deadlineTick = Math.max(tick + 1,
+                Math.floorDiv(currentNanos + delayNanos - startNanos + tickNanos - 1, tickNanos));
+        Timeout timeout = new Timeout(task, deadlineTick);
+        buckets[(int) (timeout.deadlineTick & mask)].add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * 推进到now，依次处理经过的每个tick的桶，执行到期的任务
+     * 任务中可以安排新的任务，新任务最早在下一个tick执行
+     * @return 执行的任务数
+     */
+    public int advance(long nowNanos) {
+        long target = (nowNanos - startNanos) / tickNanos;
+        int fired = 0;
+        while (tick < target) {
+            if (size == 0) {
+                // 没有任务时直接跳到目标tick，事件循环长时间阻塞之后不需要逐个经过空桶
+                tick = target;
+                break;
+            }
+            tick++;
+            // 任务中安排新任务时的当前时间：追赶中经过的tick用tick的时间，最后一个tick用实际的时间
+            currentNanos = tick == target ? nowNanos : startNanos + tick * tickNanos;
+            Bucket bucket = buckets[(int) (tick & mask)];
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= tick) {
+                    bucket.remove(timeout);
+                    size--;
+                    fired++;
+                    timeout.task.run();
+                }
+                timeout = next;
+            }
+        }
+        currentNanos = nowNanos;
+        return fired;
+    }
+
+    /**
+     * @return 到下一个tick的纳秒数，事件循环用它作为select的超时时间
+     */
+    public long nanosUntilNextTick(long nowNanos) {
+        long next = startNanos + (tick + 1) * tickNanos;
+        return Math.max(0, next - nowNanos);
+    }
+
+    /**
+     * @return 还没有执行也没有取消的任务数
+     */
+    public int size() {
+        return size;
+    }
+}
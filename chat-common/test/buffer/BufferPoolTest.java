@@ -0,0 +1,67 @@
+package buffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 测试缓冲区池的大小等级、复用、统计和泄漏检测
+ */
+public class BufferPoolTest {
+
+    private final BufferPool pool = new BufferPool(new int[]{256, 1024}, 2, 4, true);
+
+    @Test
+    public void givenSize_thenRoundUpToSizeClass() {
+        ByteBuffer buffer = pool.acquire(300);
+        Assert.assertEquals(1024, buffer.capacity());
+        Assert.assertTrue(buffer.isDirect());
+        pool.release(buffer);
+    }
+
+    @Test
+    public void givenReleasedBuffer_thenReuse() {
+        ByteBuffer first = pool.acquire(100);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(200);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(1, pool.getMisses());
+        pool.release(second);
+    }
+
+    @Test
+    public void givenUnreleasedBuffer_thenReportLeak() {
+        ByteBuffer buffer = pool.acquire(100);
+        Assert.assertEquals(1, pool.getOutstanding());
+        Assert.assertEquals(1, pool.leaks().size());
+
+        pool.release(buffer);
+        Assert.assertEquals(0, pool.getOutstanding());
+        Assert.assertTrue(pool.leaks().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenDoubleRelease_thenFail() {
+        ByteBuffer buffer = pool.acquire(100);
+        pool.release(buffer);
+        pool.release(buffer);
+    }
+
+    @Test
+    public void givenSharedBuffer_thenReleaseWhenLastViewReleased() {
+        ByteBuffer buffer = pool.acquire(100);
+        buffer.put((byte) 1).flip();
+        SharedBuffer shared = new SharedBuffer(pool, buffer);
+
+        ByteBuffer view = shared.retainedView();
+        Assert.assertTrue(view.isReadOnly());
+        shared.release();
+        Assert.assertEquals(1, pool.getOutstanding());
+
+        shared.release();
+        Assert.assertEquals(0, pool.getOutstanding());
+    }
+}
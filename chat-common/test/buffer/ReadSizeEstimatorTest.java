@@ -0,0 +1,37 @@
+package buffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 测试读缓冲区大小按最近读到的字节数调整
+ */
+public class ReadSizeEstimatorTest {
+
+    @Test
+    public void givenFullReads_thenDoubleUpToMax() {
+        ReadSizeEstimator estimator = new ReadSizeEstimator(256, 1024, 8192);
+        Assert.assertEquals(1024, estimator.next());
+
+        estimator.record(1024, 1024);
+        Assert.assertEquals(2048, estimator.next());
+        estimator.record(2048, 2048);
+        estimator.record(4096, 4096);
+        Assert.assertEquals(8192, estimator.next());
+        estimator.record(8192, 8192);
+        Assert.assertEquals(8192, estimator.next());
+    }
+
+    @Test
+    public void givenSmallReads_thenShrinkToMin() {
+        ReadSizeEstimator estimator = new ReadSizeEstimator(256, 4096, 8192);
+        estimator.record(10, 4096);
+        // 移动平均，一次小的读不会立刻缩到最小
+        Assert.assertEquals(4096, estimator.next());
+
+        for (int i = 0; i < 20; i++) {
+            estimator.record(10, estimator.next());
+        }
+        Assert.assertEquals(256, estimator.next());
+    }
+}
@@ -0,0 +1,181 @@
+package codec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 测试帧编解码器能否正确处理粘包、半包和被拆开的UTF-8字符
+ */
+public class VarintFrameCodecTest {
+
+    private final VarintFrameCodec codec = new VarintFrameCodec();
+
+    @Test
+    public void givenCoalescedFrames_thenDecodeAll() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.put(codec.encode(Frame.text("hello")));
+        in.put(codec.encode(Frame.text("world")));
+        in.flip();
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(in, frames);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertEquals("hello", frames.get(0).text());
+        Assert.assertEquals("world", frames.get(1).text());
+        Assert.assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void givenMaxFrames_thenLeaveRestInBuffer() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.put(codec.encode(Frame.text("a")));
+        in.put(codec.encode(Frame.text("b")));
+        in.put(codec.encode(Frame.text("c")));
+        in.flip();
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(in, frames, 2);
+        Assert.assertEquals(2, frames.size());
+        Assert.assertTrue(in.hasRemaining());
+
+        codec.decode(in, frames, 0);
+        Assert.assertEquals(2, frames.size());
+        codec.decode(in, frames);
+        Assert.assertEquals("c", frames.get(2).text());
+        Assert.assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void givenSplitFrame_thenDecodeWhenComplete() throws IOException {
+        // 多字节的UTF-8字符被拆到两次read中
+        ByteBuffer encoded = codec.encode(Frame.text("你好，世界"));
+        ByteBuffer in = ByteBuffer.allocate(64);
+        List<Frame> frames = new ArrayList<>();
+
+        for (int i = 0; i < encoded.limit(); i++) {
+            in.put(encoded.get(i));
+            in.flip();
+            codec.decode(in, frames);
+            in.compact();
+        }
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals("你好，世界", frames.get(0).text());
+    }
+
+    @Test
+    public void givenLongFrame_thenUseMultiByteLength() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append('a');
+        }
+        ByteBuffer encoded = codec.encode(Frame.text(text.toString()));
+        // 301 = 1个类型字节 + 300字节负载，需要两个字节的varint
+        Assert.assertEquals(2 + 301, encoded.remaining());
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(encoded, frames);
+        Assert.assertEquals(text.toString(), frames.get(0).text());
+    }
+
+    @Test
+    public void givenMessageHeaderAndBody_thenDecodeSenderAndText() throws IOException {
+        ByteBuffer body = ByteBuffer.wrap("大家好".getBytes("UTF-8"));
+        ByteBuffer header = Messages.header(codec, 42, "lobby".getBytes("UTF-8"),
+                "客户端[1]".getBytes("UTF-8"), body.remaining());
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.put(header).put(body).flip();
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(in, frames);
+
+        Assert.assertEquals(FrameType.MESSAGE, frames.get(0).getType());
+        Assert.assertEquals(42, Messages.seq(frames.get(0)));
+        Assert.assertEquals("lobby", Messages.room(frames.get(0)));
+        Assert.assertEquals("客户端[1]", Messages.sender(frames.get(0)));
+        Assert.assertEquals("大家好", Messages.text(frames.get(0)));
+    }
+
+    @Test
+    public void givenMessageEncodedInPlace_thenDecodeSenderAndText() throws IOException {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        byte[] sender = "客户端[2]".getBytes("UTF-8");
+        byte[] room = "房间".getBytes("UTF-8");
+        ByteBuffer out = ByteBuffer.allocateDirect(Messages.maxLength(codec, room, sender, "直接编码", encoder));
+        Messages.encode(codec, 7, room, sender, "直接编码", encoder, out);
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(out, frames);
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals(7, Messages.seq(frames.get(0)));
+        Assert.assertEquals("房间", Messages.room(frames.get(0)));
+        Assert.assertEquals("客户端[2]", Messages.sender(frames.get(0)));
+        Assert.assertEquals("直接编码", Messages.text(frames.get(0)));
+    }
+
+    @Test
+    public void givenRawText_thenRelaySameFrameAsEncodedText() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(codec.encode(Frame.text("原样转发")), frames);
+        Frame frame = frames.get(0);
+        Assert.assertTrue(frame.startsWith("原".getBytes("UTF-8")));
+        Assert.assertFalse(frame.contentEquals("原".getBytes("UTF-8")));
+
+        byte[] sender = "bob".getBytes("UTF-8");
+        byte[] room = "lobby".getBytes("UTF-8");
+        ByteBuffer out = ByteBuffer.allocate(Messages.length(codec, room, sender, frame.getPayload().remaining()));
+        Messages.encode(codec, 3, room, sender, frame.getPayload(), out);
+
+        Assert.assertEquals(Messages.encode(codec, 3, "lobby", "bob", "原样转发"), out);
+        Assert.assertEquals(0, frame.getPayload().position());
+    }
+
+    @Test
+    public void givenPrivateMessage_thenDecodeWithoutSeq() throws IOException {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        byte[] sender = "alice".getBytes("UTF-8");
+        ByteBuffer out = ByteBuffer.allocate(Messages.maxLength(codec, null, sender, "悄悄话", encoder));
+        Messages.encodePrivate(codec, sender, "悄悄话", encoder, out);
+
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(out, frames);
+
+        Assert.assertEquals(FrameType.PRIVATE, frames.get(0).getType());
+        Assert.assertEquals("alice", Messages.sender(frames.get(0)));
+        Assert.assertEquals("悄悄话", Messages.text(frames.get(0)));
+    }
+
+    @Test
+    public void givenResume_thenDecodeSeqAndRoom() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(Messages.resume(codec, 1234567890123L, "房间"), frames);
+
+        Assert.assertEquals(FrameType.RESUME, frames.get(0).getType());
+        Assert.assertEquals(1234567890123L, Messages.seq(frames.get(0)));
+        Assert.assertEquals("房间", Messages.room(frames.get(0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void givenShortAck_thenFailWithIOException() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        codec.decode(ByteBuffer.wrap(new byte[]{2, 4, 1}), frames);
+
+        Messages.seq(frames.get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void givenOversizedFrame_thenFail() throws IOException {
+        VarintFrameCodec small = new VarintFrameCodec(8);
+        ByteBuffer in = codec.encode(Frame.text("this frame is too long"));
+        small.decode(in, new ArrayList<>());
+    }
+}
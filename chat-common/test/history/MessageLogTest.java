@@ -0,0 +1,137 @@
+package history;
+
+import codec.Frame;
+import codec.VarintFrameCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 测试历史消息日志的追加、跨分段读取和重启后的恢复
+ */
+public class MessageLogTest {
+
+    private final VarintFrameCodec codec = new VarintFrameCodec();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("history").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void givenMessages_thenReadLastInOrder() throws IOException {
+        try (MessageLog log = new MessageLog(dir, 4096, 4)) {
+            for (int i = 1; i <= 10; i++) {
+                Assert.assertEquals(i, log.append(codec.encode(Frame.text("消息" + i))));
+            }
+
+            List<String> texts = decode(log.readLast(3));
+            Assert.assertEquals(3, texts.size());
+            Assert.assertEquals("消息8", texts.get(0));
+            Assert.assertEquals("消息10", texts.get(2));
+        }
+    }
+
+    @Test
+    public void givenFullSegment_thenRollAndReadAcrossSegments() throws IOException {
+        try (MessageLog log = new MessageLog(dir, 256, 4)) {
+            for (int i = 1; i <= 50; i++) {
+                log.append(codec.encode(Frame.text("message-" + i)));
+            }
+            Assert.assertTrue(dir.listFiles().length > 1);
+
+            List<Region> regions = log.readSince(1, 50);
+            Assert.assertTrue(regions.size() > 1);
+            List<String> texts = decode(regions);
+            Assert.assertEquals(50, texts.size());
+            Assert.assertEquals("message-1", texts.get(0));
+            Assert.assertEquals("message-50", texts.get(49));
+        }
+    }
+
+    @Test
+    public void givenReopenedLog_thenRecoverSequence() throws IOException {
+        try (MessageLog log = new MessageLog(dir, 256, 4)) {
+            for (int i = 1; i <= 30; i++) {
+                log.append(codec.encode(Frame.text("message-" + i)));
+            }
+        }
+        try (MessageLog log = new MessageLog(dir, 256, 4)) {
+            Assert.assertEquals(31, log.nextSeq());
+            Assert.assertEquals(31, log.append(codec.encode(Frame.text("message-31"))));
+            Assert.assertEquals("message-29", decode(log.readSince(29, 1)).get(0));
+        }
+    }
+
+    @Test
+    public void givenRegion_thenTransferToChannel() throws IOException {
+        try (MessageLog log = new MessageLog(dir, 4096, 4)) {
+            ByteBuffer frame = codec.encode(Frame.text("零拷贝"));
+            log.append(frame);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Region region = log.readLast(1).get(0);
+            region.transferTo(Channels.newChannel(out));
+
+            Assert.assertEquals(0, region.remaining());
+            Assert.assertArrayEquals(toArray(codec.encode(Frame.text("零拷贝"))), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void givenWrongSeq_thenRejectWithoutAppending() throws IOException {
+        try (MessageLog log = new MessageLog(dir, 4096, 4)) {
+            log.append(codec.encode(Frame.text("消息1")), 1);
+            try {
+                log.append(codec.encode(Frame.text("消息3")), 3);
+                Assert.fail();
+            } catch (SeqMismatchException e) {
+                // 期望的异常
+            }
+            log.append(codec.encode(Frame.text("消息2")), 2);
+
+            Assert.assertEquals(3, log.nextSeq());
+            Assert.assertEquals(List.of("消息1", "消息2"), decode(log.readLast(10)));
+        }
+    }
+
+    private List<String> decode(List<Region> regions) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        for (Region region : regions) {
+            codec.decode(region.slice(), frames);
+        }
+        List<String> texts = new ArrayList<>();
+        for (Frame frame : frames) {
+            texts.add(frame.text());
+        }
+        return texts;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
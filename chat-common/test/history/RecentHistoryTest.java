@@ -0,0 +1,94 @@
+package history;
+
+import buffer.BufferPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 测试最近消息环形缓冲区的淘汰和绕回
+ */
+public class RecentHistoryTest {
+
+    private final BufferPool pool = new BufferPool(new int[]{256}, 2, 4, true);
+
+    @Test
+    public void givenTooManyMessages_thenKeepNewest() {
+        RecentHistory recent = new RecentHistory(3, 1024);
+        for (int i = 1; i <= 5; i++) {
+            recent.append(bytes("m" + i + ";"));
+        }
+
+        Assert.assertEquals(3, recent.size());
+        Assert.assertEquals("m3;m4;m5;", copy(recent));
+    }
+
+    @Test
+    public void givenTooManyBytes_thenWrapAround() {
+        RecentHistory recent = new RecentHistory(100, 10);
+        recent.append(bytes("aaaa"));
+        recent.append(bytes("bbbb"));
+        // 放不下，淘汰aaaa，cccc被拆成末尾两个字节和开头两个字节
+        recent.append(bytes("cccc"));
+
+        Assert.assertEquals(2, recent.size());
+        Assert.assertEquals(8, recent.bytes());
+        Assert.assertEquals("bbbbcccc", copy(recent));
+    }
+
+    @Test
+    public void givenLastSeq_thenCopyOnlyTheGap() {
+        RecentHistory recent = new RecentHistory(3, 1024);
+        for (int i = 1; i <= 5; i++) {
+            recent.append(i, bytes("m" + i + ";"));
+        }
+
+        ByteBuffer gap = recent.copySince(3, pool);
+        Assert.assertEquals("m4;m5;", StandardCharsets.UTF_8.decode(gap).toString());
+        pool.release(gap);
+        Assert.assertFalse(recent.copySince(5, pool).hasRemaining());
+        // m2已经被淘汰，补不全
+        Assert.assertNull(recent.copySince(1, pool));
+    }
+
+    @Test
+    public void givenEmptyHistory_thenCopyNothing() {
+        Assert.assertNull(new RecentHistory(10, 100).copy(pool));
+    }
+
+    @Test
+    public void givenFirstAppend_thenAllocateLazilyAndGrowUpToMax() {
+        RecentHistory recent = new RecentHistory(100, 4096);
+        Assert.assertEquals(0, recent.capacity());
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            String message = String.format("%02d", i) + "x".repeat(98) + ";";
+            recent.append(i, bytes(message));
+            expected.append(message);
+        }
+        // 2020字节，扩容两次，消息的顺序不变
+        Assert.assertEquals(2048, recent.capacity());
+        Assert.assertEquals(20, recent.size());
+        Assert.assertEquals(expected.toString(), copy(recent));
+
+        for (int i = 20; i < 60; i++) {
+            recent.append(i, bytes(String.format("%02d", i) + "x".repeat(98) + ";"));
+        }
+        Assert.assertEquals(4096, recent.capacity());
+        Assert.assertEquals(40, recent.size());
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return StandardCharsets.UTF_8.encode(text);
+    }
+
+    private String copy(RecentHistory recent) {
+        ByteBuffer buffer = recent.copy(pool);
+        String text = StandardCharsets.UTF_8.decode(buffer).toString();
+        pool.release(buffer);
+        return text;
+    }
+}
@@ -0,0 +1,149 @@
+package history;
+
+import buffer.SharedBuffer;
+import codec.Frame;
+import codec.VarintFrameCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试组提交：多条消息一批force，按提交顺序回调
+ */
+public class WriteAheadLogTest {
+
+    private final VarintFrameCodec codec = new VarintFrameCodec();
+    private File dir;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wal").toFile();
+        log = new MessageLog(dir, 64 * 1024, 16);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void givenBurst_thenCommitInBatchesInOrder() throws Exception {
+        // 攒1秒或者满1MB才提交，所以100条消息会在同一批中
+        WriteAheadLog wal = new WriteAheadLog(Durability.BATCH, 1024 * 1024, 1000);
+        List<Long> seqs = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            wal.submit(log, SharedBuffer.unpooled(codec.encode(Frame.text("message-" + i))), (seq, error) -> {
+                seqs.add(seq);
+                done.countDown();
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        wal.close();
+
+        Assert.assertEquals(100, wal.getAppended());
+        Assert.assertEquals(1, wal.getBatches());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i + 1, (long) seqs.get(i));
+        }
+    }
+
+    @Test
+    public void givenPerMessage_thenOneBatchPerMessage() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(Durability.PER_MESSAGE, 1024 * 1024, 1000);
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            wal.submit(log, SharedBuffer.unpooled(codec.encode(Frame.text("message-" + i))),
+                    (seq, error) -> done.countDown());
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        wal.close();
+
+        Assert.assertEquals(3, wal.getBatches());
+        Assert.assertEquals(4, log.nextSeq());
+    }
+
+    @Test
+    public void givenRuntimeExceptions_thenFailOnlyThoseMessagesAndKeepWriting() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(Durability.PER_MESSAGE, 1024 * 1024, 0);
+        List<Long> seqs = new CopyOnWriteArrayList<>();
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // 没有日志，追加时抛出NullPointerException
+        wal.submit(null, SharedBuffer.unpooled(codec.encode(Frame.text("broken"))), (seq, error) -> {
+            errors.add(error);
+            done.countDown();
+        });
+        wal.submit(log, SharedBuffer.unpooled(codec.encode(Frame.text("first"))), (seq, error) -> {
+            done.countDown();
+            throw new IllegalStateException("回调出错");
+        });
+        wal.submit(log, SharedBuffer.unpooled(codec.encode(Frame.text("second"))), (seq, error) -> {
+            seqs.add(seq);
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        wal.close();
+
+        Assert.assertEquals(1, errors.size());
+        Assert.assertNotNull(errors.get(0));
+        Assert.assertEquals(2, (long) seqs.get(0));
+    }
+
+    @Test
+    public void givenFailedAppend_thenFailLaterSeqsUntilSeqReused() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(Durability.BATCH, 1024 * 1024, 0);
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // 比分段还大，写入失败
+        wal.submit(log, 1, SharedBuffer.unpooled(codec.encode(Frame.text("x".repeat(128 * 1024)))), (seq, error) -> {
+            errors.add(error);
+            done.countDown();
+        });
+        wal.submit(log, 2, SharedBuffer.unpooled(codec.encode(Frame.text("second"))), (seq, error) -> {
+            errors.add(error);
+            done.countDown();
+        });
+        // 序号还回去之后重新使用
+        wal.submit(log, 1, SharedBuffer.unpooled(codec.encode(Frame.text("retry"))), (seq, error) -> {
+            errors.add(error);
+            done.countDown();
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        wal.close();
+
+        Assert.assertNotNull(errors.get(0));
+        Assert.assertFalse(errors.get(0) instanceof SeqMismatchException);
+        Assert.assertTrue(errors.get(1) instanceof SeqMismatchException);
+        Assert.assertNull(errors.get(2));
+        Assert.assertEquals(2, log.nextSeq());
+    }
+
+    @Test
+    public void givenClosed_thenFailSubmitImmediately() {
+        WriteAheadLog wal = new WriteAheadLog(Durability.BATCH, 1024 * 1024, 0);
+        wal.close();
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        wal.submit(log, SharedBuffer.unpooled(codec.encode(Frame.text("late"))), (seq, error) -> errors.add(error));
+
+        Assert.assertEquals(1, errors.size());
+        Assert.assertNotNull(errors.get(0));
+    }
+}
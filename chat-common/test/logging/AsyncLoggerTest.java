@@ -0,0 +1,89 @@
+package logging;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * 测试日志级别过滤、关闭时写完剩余日志和文件滚动
+ */
+public class AsyncLoggerTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void givenLevel_thenWriteOnlyEnabledLogsBeforeClose() throws IOException {
+        File file = new File(dir, "chat.log");
+        AsyncLogger logger = new AsyncLogger(Level.INFO, 1, 1024, file, 1024 * 1024, 3);
+        logger.debug("不记录");
+        logger.info("客户端[1]已连接");
+        logger.error("读写失败", new IOException("连接被重置"));
+        logger.close();
+
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Assert.assertFalse(text.contains("不记录"));
+        Assert.assertTrue(text.contains("INFO [main] 客户端[1]已连接\n"));
+        Assert.assertTrue(text.contains("ERROR [main] 读写失败\njava.io.IOException: 连接被重置\n"));
+    }
+
+    @Test
+    public void givenSmallFiles_thenRollAndKeepNewest() throws IOException {
+        File file = new File(dir, "chat.log");
+        AsyncLogger logger = new AsyncLogger(Level.INFO, 1, 1024, file, 100, 3);
+        for (int i = 0; i < 20; i++) {
+            logger.info("message-" + i);
+            // 每条日志单独成批，才能滚动多次
+            while (!contains(file, "message-" + i)) {
+                Thread.onSpinWait();
+            }
+        }
+        logger.close();
+
+        Assert.assertTrue(new File(dir, "chat.log.1").exists());
+        Assert.assertTrue(new File(dir, "chat.log.2").exists());
+        Assert.assertFalse(new File(dir, "chat.log.3").exists());
+        Assert.assertTrue(contains(file, "message-19"));
+        Assert.assertTrue(file.length() <= 100);
+    }
+
+    @Test
+    public void givenOff_thenNothingSampled() throws IOException {
+        AsyncLogger logger = new AsyncLogger(Level.OFF, 1, 16, new File(dir, "off.log"), 1024, 1);
+        Assert.assertFalse(logger.sampled(Level.ERROR));
+        logger.close();
+    }
+
+    /**
+     * 滚动的过程中文件可能暂时不存在
+     */
+    private static boolean contains(File file, String text) throws IOException {
+        try {
+            return Files.readString(file.toPath()).contains(text);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package logging;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 测试环形缓冲区满时拒绝，以及多个生产者同时入队
+ */
+public class RingBufferTest {
+
+    @Test
+    public void givenFullBuffer_thenRejectUntilPolled() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(4));
+        Assert.assertEquals(Integer.valueOf(0), ring.poll());
+        Assert.assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        Assert.assertNull(ring.poll());
+    }
+
+    @Test
+    public void givenConcurrentProducers_thenConsumeEveryElementOnce() throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(1024);
+        int producers = 4;
+        int perProducer = 10000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        Set<Integer> seen = new HashSet<>();
+        while (seen.size() < producers * perProducer) {
+            Integer value = ring.poll();
+            if (value != null) {
+                Assert.assertTrue(seen.add(value));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(ring.poll());
+    }
+}
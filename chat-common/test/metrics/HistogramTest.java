@@ -0,0 +1,65 @@
+package metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 测试直方图的分位数精度、超出范围的值和合并
+ */
+public class HistogramTest {
+
+    @Test
+    public void givenUniformValues_thenPercentilesWithinPrecision() {
+        Histogram histogram = new Histogram(60_000_000_000L, 7);
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        Assert.assertEquals(100_000, histogram.getTotalCount());
+        assertClose(50_000_000, histogram.getValueAtPercentile(50));
+        assertClose(99_000_000, histogram.getValueAtPercentile(99));
+        assertClose(99_900_000, histogram.getValueAtPercentile(99.9));
+        Assert.assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+        assertClose(50_000_500, (long) histogram.getMean());
+    }
+
+    @Test
+    public void givenSmallValues_thenExact() {
+        Histogram histogram = new Histogram(1000, 7);
+        histogram.record(3);
+        histogram.record(5);
+        histogram.record(-1);
+
+        Assert.assertEquals(0, histogram.getValueAtPercentile(10));
+        Assert.assertEquals(3, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(5, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void givenValueAboveRange_thenKeepMax() {
+        Histogram histogram = new Histogram(1000, 7);
+        histogram.record(1_000_000);
+
+        Assert.assertEquals(1_000_000, histogram.getMax());
+        Assert.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void givenTwoHistograms_thenAddCounts() {
+        Histogram a = new Histogram(1_000_000, 7);
+        Histogram b = new Histogram(1_000_000, 7);
+        a.record(100);
+        b.record(200_000);
+        a.add(b);
+
+        Assert.assertEquals(2, a.getTotalCount());
+        Assert.assertEquals(200_000, a.getMax());
+        a.reset();
+        Assert.assertEquals(0, a.getTotalCount());
+        Assert.assertEquals(0, a.getValueAtPercentile(99));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= expected / 64);
+    }
+}
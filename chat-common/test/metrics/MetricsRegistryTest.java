@@ -0,0 +1,60 @@
+package metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试Prometheus文本格式的导出
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void givenCounterGaugeAndHistogram_thenExportPrometheusText() {
+        MetricsRegistry registry = new MetricsRegistry();
+        AtomicLong connections = new AtomicLong(3);
+        registry.counter("chat_messages_in_total", "收到的消息数").add(5);
+        registry.gauge("chat_connections", "当前连接数", connections::get);
+        Histogram fanout = registry.histogram("chat_fanout_seconds", "转发耗时");
+        fanout.record(1_000_000);
+        fanout.record(3_000_000);
+
+        String text = registry.toString();
+        Assert.assertTrue(text.contains("# TYPE chat_messages_in_total counter\nchat_messages_in_total 5\n"));
+        Assert.assertTrue(text.contains("# TYPE chat_connections gauge\nchat_connections 3\n"));
+        Assert.assertTrue(text.contains("# TYPE chat_fanout_seconds summary\n"));
+        Assert.assertTrue(text.contains("chat_fanout_seconds{quantile=\"0.5\"} 0.001"));
+        Assert.assertTrue(text.contains("chat_fanout_seconds_sum 0.004\n"));
+        Assert.assertTrue(text.contains("chat_fanout_seconds_count 2\n"));
+        // 按名称排序
+        Assert.assertTrue(text.indexOf("chat_connections") < text.indexOf("chat_fanout_seconds"));
+    }
+
+    @Test
+    public void givenSameName_thenReturnSameCounter() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("chat_bytes_in_total", "收到的字节数").increment();
+        registry.counter("chat_bytes_in_total", "收到的字节数").increment();
+
+        Assert.assertEquals(2, registry.counter("chat_bytes_in_total", "收到的字节数").get());
+    }
+
+    @Test
+    public void givenCounterSupplier_thenExportAsCounter() {
+        MetricsRegistry registry = new MetricsRegistry();
+        AtomicLong appended = new AtomicLong(7);
+        registry.counter("chat_wal_appended_total", "持久化的消息数", appended::get);
+        appended.incrementAndGet();
+
+        Assert.assertTrue(registry.toString()
+                .contains("# TYPE chat_wal_appended_total counter\nchat_wal_appended_total 8\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenSameNameDifferentType_thenFail() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("chat_connections", "当前连接数");
+        registry.gauge("chat_connections", "当前连接数", () -> 0);
+    }
+}
@@ -0,0 +1,41 @@
+package ratelimit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试令牌桶的突发、补充和预支
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void givenBurstUsedUp_thenRefillAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 5, 0);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(bucket.tryAcquire(1, 0));
+        }
+        Assert.assertFalse(bucket.tryAcquire(1, 0));
+        // 每秒10个，0.1秒补充一个
+        Assert.assertFalse(bucket.tryAcquire(1, SECOND / 20));
+        Assert.assertTrue(bucket.tryAcquire(1, SECOND / 10));
+        // 很久没有使用也最多攒到容量
+        Assert.assertFalse(bucket.tryAcquire(6, 100 * SECOND));
+        Assert.assertTrue(bucket.tryAcquire(5, 100 * SECOND));
+    }
+
+    @Test
+    public void givenConsumeMoreThanAvailable_thenReturnDelayToRepay() {
+        TokenBucket bucket = new TokenBucket(1000, 1000, 0);
+
+        Assert.assertEquals(0, bucket.consume(600, 0));
+        // 预支了1000，按每秒1000个需要1秒还清
+        Assert.assertEquals(SECOND, bucket.consume(1400, 0));
+        Assert.assertEquals(-1000, bucket.getTokens());
+        Assert.assertFalse(bucket.tryAcquire(1, SECOND / 2));
+        Assert.assertEquals(0, bucket.consume(0, SECOND));
+    }
+}
@@ -0,0 +1,107 @@
+package session;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timer.TimingWheel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用时间轮驱动空闲检查，测试心跳和空闲断开
+ */
+public class IdlePolicyTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long HEARTBEAT = 10 * TICK;
+
+    /**
+     * 模拟一个连接：和Reactor一样只记录最后读的时间和是否发过PING，由时间轮安排检查
+     */
+    private static final class Client {
+        private final IdlePolicy policy;
+        private final TimingWheel wheel;
+        // 是否回复PONG
+        private final boolean answers;
+        private long now;
+        private long lastRead;
+        private boolean pinged;
+        private int pings;
+        private boolean closed;
+
+        private Client(IdlePolicy policy, TimingWheel wheel, boolean answers) {
+            this.policy = policy;
+            this.wheel = wheel;
+            this.answers = answers;
+            schedule();
+        }
+
+        private void schedule() {
+            long deadline = policy.nextCheck(lastRead, pinged, now);
+            if (deadline != Long.MAX_VALUE) {
+                wheel.schedule(this::check, deadline - now);
+            }
+        }
+
+        private void check() {
+            IdlePolicy.Action action = policy.check(lastRead, pinged, now);
+            if (action == IdlePolicy.Action.CLOSE) {
+                closed = true;
+                return;
+            }
+            if (action == IdlePolicy.Action.PING) {
+                pings++;
+                pinged = true;
+                if (answers) {
+                    // 下一个tick收到PONG，和Connection.touch一样只更新最后读的时间
+                    wheel.schedule(() -> {
+                        lastRead = now;
+                        pinged = false;
+                    }, TICK);
+                }
+            }
+            schedule();
+        }
+
+        private void runUntil(long end) {
+            while (now < end) {
+                now += TICK;
+                wheel.advance(now);
+            }
+        }
+    }
+
+    @Test
+    public void givenHeartbeatWithoutIdleTimeout_thenKeepPingingAfterPong() {
+        Client client = new Client(new IdlePolicy(HEARTBEAT, 0), new TimingWheel(TICK, 64, 0), true);
+
+        client.runUntil(10 * HEARTBEAT);
+
+        // 每次PONG之后过一个心跳间隔再发下一个PING
+        Assert.assertTrue("pings=" + client.pings, client.pings >= 8);
+        Assert.assertFalse(client.closed);
+    }
+
+    @Test
+    public void givenNoPong_thenPingOnceAndKeepChecking() {
+        TimingWheel wheel = new TimingWheel(TICK, 64, 0);
+        Client client = new Client(new IdlePolicy(HEARTBEAT, 0), wheel, false);
+
+        client.runUntil(10 * HEARTBEAT);
+
+        // 空闲期间只发一次PING，但是检查一直在时间轮中，之后收到数据还会再发
+        Assert.assertEquals(1, client.pings);
+        Assert.assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void givenIdleTimeout_thenCloseAfterPing() {
+        Client client = new Client(new IdlePolicy(HEARTBEAT, 3 * HEARTBEAT), new TimingWheel(TICK, 64, 0), false);
+
+        client.runUntil(2 * HEARTBEAT);
+        Assert.assertEquals(1, client.pings);
+        Assert.assertFalse(client.closed);
+
+        client.runUntil(3 * HEARTBEAT);
+        Assert.assertTrue(client.closed);
+    }
+}
@@ -0,0 +1,51 @@
+package session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 测试会话表的ID分配、复用和扩容
+ */
+public class SessionTableTest {
+
+    @Test
+    public void givenRemovedSession_thenReuseIdWithClearedFields() {
+        SessionTable<String> table = new SessionTable<>(4);
+        int a = table.add("a");
+        int b = table.add("b");
+        table.setState(a, 3);
+        table.setLastSeen(a, 100);
+        table.addQueuedBytes(a, 64);
+
+        Assert.assertTrue(table.remove(a, "a"));
+        Assert.assertFalse(table.remove(a, "a"));
+        Assert.assertNull(table.get(a));
+
+        int c = table.add("c");
+        Assert.assertEquals(a, c);
+        Assert.assertEquals("c", table.get(c));
+        Assert.assertEquals(0, table.getState(c));
+        Assert.assertEquals(0, table.getLastSeen(c));
+        Assert.assertEquals(0, table.getQueuedBytes(c));
+        // ID已经给了别的会话，旧会话删除不会影响新会话
+        Assert.assertFalse(table.remove(c, "a"));
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals("b", table.get(b));
+    }
+
+    @Test
+    public void givenMoreSessionsThanCapacity_thenGrowAndKeepFields() {
+        SessionTable<Integer> table = new SessionTable<>(2);
+        for (int i = 0; i < 100; i++) {
+            int id = table.add(i);
+            Assert.assertEquals(i, id);
+            table.setLastSeen(id, i * 10L);
+        }
+
+        Assert.assertEquals(100, table.size());
+        Assert.assertEquals(128, table.capacity());
+        Assert.assertEquals(Integer.valueOf(42), table.get(42));
+        Assert.assertEquals(420, table.getLastSeen(42));
+        Assert.assertNull(table.get(100));
+    }
+}
@@ -0,0 +1,44 @@
+package session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 测试用户索引的登录、登出和查找
+ */
+public class UserIndexTest {
+
+    private final UserIndex<Object> users = new UserIndex<>();
+
+    @Test
+    public void givenTakenUserId_thenLoginFail() {
+        Object first = new Object();
+        Object second = new Object();
+
+        Assert.assertTrue(users.login("alice", first));
+        Assert.assertTrue(users.login("alice", first));
+        Assert.assertFalse(users.login("alice", second));
+        Assert.assertSame(first, users.lookup("alice"));
+    }
+
+    @Test
+    public void givenOtherConnection_thenLogoutKeepUser() {
+        Object first = new Object();
+        users.login("bob", first);
+
+        users.logout("bob", new Object());
+        Assert.assertSame(first, users.lookup("bob"));
+
+        users.logout("bob", first);
+        Assert.assertNull(users.lookup("bob"));
+        Assert.assertEquals(0, users.size());
+    }
+
+    @Test
+    public void givenInvalidUserId_thenReject() {
+        Assert.assertFalse(UserIndex.isValidUserId(null));
+        Assert.assertFalse(UserIndex.isValidUserId(""));
+        Assert.assertFalse(UserIndex.isValidUserId("a b"));
+        Assert.assertTrue(UserIndex.isValidUserId("小明"));
+    }
+}
@@ -0,0 +1,33 @@
+package timer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试由后台线程推进的时间轮
+ */
+public class HashedWheelTimerTest {
+
+    @Test
+    public void givenTasksFromOtherThread_thenRunAfterDelay() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(TimeUnit.MILLISECONDS.toNanos(10), 64, "test-timer");
+        timer.start();
+        try {
+            CountDownLatch latch = new CountDownLatch(2);
+            long start = System.nanoTime();
+            timer.schedule(() -> {
+                throw new IllegalStateException("任务失败");
+            }, 20, TimeUnit.MILLISECONDS);
+            timer.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+            timer.schedule(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+            Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        } finally {
+            timer.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package timer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试时间轮的到期、取消和跨圈
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void givenDelay_thenFireNotEarlierThanDeadline() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(() -> fired.add("a"), 25 * 1_000_000L);
+        wheel.schedule(() -> fired.add("b"), 5 * 1_000_000L);
+
+        Assert.assertEquals(1, wheel.advance(TICK));
+        Assert.assertEquals(List.of("b"), fired);
+        Assert.assertEquals(0, wheel.advance(2 * TICK));
+        Assert.assertEquals(1, wheel.advance(3 * TICK));
+        Assert.assertEquals(List.of("b", "a"), fired);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void givenScheduleInTheMiddleOfTick_thenNotFireEarly() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<String> fired = new ArrayList<>();
+        // 已经过了第1个tick的一半，10毫秒之后是25毫秒，不能在20毫秒执行
+        wheel.advance(TICK + TICK / 2);
+        wheel.schedule(() -> fired.add("a"), TICK);
+
+        Assert.assertEquals(0, wheel.advance(2 * TICK));
+        Assert.assertEquals(1, wheel.advance(3 * TICK));
+        Assert.assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    public void givenCancelled_thenNotFire() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimingWheel.Timeout a = wheel.schedule(() -> fired.add("a"), TICK);
+        wheel.schedule(() -> fired.add("b"), TICK);
+        a.cancel();
+        a.cancel();
+
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(TICK);
+        Assert.assertEquals(List.of("b"), fired);
+        Assert.assertTrue(a.isCancelled());
+    }
+
+    @Test
+    public void givenDelayLongerThanOneRound_thenWaitForLaterRound() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        List<String> fired = new ArrayList<>();
+        // 8个桶，20个tick之后要转两圈多
+        wheel.schedule(() -> fired.add("a"), 20 * TICK);
+
+        wheel.advance(19 * TICK);
+        Assert.assertTrue(fired.isEmpty());
+        wheel.advance(20 * TICK);
+        Assert.assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    public void givenRescheduleInsideTask_thenFireInLaterTick() {
+        TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+        int[] count = new int[1];
+        Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            count[0]++;
+            wheel.schedule(task[0], 8 * TICK);
+        };
+        wheel.schedule(task[0], TICK);
+
+        // 一次推进很多tick，每次重新安排都在后面的tick执行，不会在同一个桶中重复执行
+        wheel.advance(17 * TICK);
+        Assert.assertEquals(3, count[0]);
+        Assert.assertEquals(1, wheel.size());
+        Assert.assertEquals(TICK, wheel.nanosUntilNextTick(17 * TICK));
+    }
+}
@@ -1,5 +1,11 @@
 package client;
 
+import codec.Frame;
+import codec.FrameCodec;
+import codec.FrameType;
+import codec.Messages;
+import codec.VarintFrameCodec;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -8,10 +14,12 @@ import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
+ * 断线后按指数退避自动重连，重连后重新登录，并让服务器从收到的最后一条消息之后继续发送
  * @author woodyiiiiiii
  */
 public class ChatClient {
@@ -19,15 +27,44 @@ public class ChatClient {
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
     private static final String QUIT = "quit";
+    private static final String LOBBY = "lobby";
     private static final int BUFFER = 1024;
+    // 重连的等待时间从MIN_BACKOFF开始每次翻倍，最多MAX_BACKOFF
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30_000;
+    // 每隔多久向服务器确认一次收到的消息
+    private static final long ACK_INTERVAL = 1000;
+    // 多久没有收到服务器的数据时发送PING，多久没有收到时认为连接已经断开并重连
+    private static final long HEARTBEAT = 30_000;
+    private static final long SERVER_TIMEOUT = 90_000;
 
     private String host;
     private int port;
     private SocketChannel client;
+    // 累积读缓冲区，保存还没有凑成完整帧的字节
     private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
-    private Selector selector;
-    private Charset charset = Charset.forName("UTF-8");
+    private volatile Selector selector;
+    // 和服务器使用同样的帧格式
+    private FrameCodec codec = new VarintFrameCodec();
+    private List<Frame> frames = new ArrayList<>();
+
+    // 以下状态由用户输入线程和网络线程共享，都在本对象的锁中访问
+    private boolean connected;
+    private volatile boolean quit;
+    // 最后一次登录的命令，重连后重新发送
+    private String login;
+    // 当前房间，以及收到的这个房间最后一条消息的序号和已经确认的序号
+    private String room = LOBBY;
+    private long lastSeq;
+    private long ackedSeq;
+    // 是否丢弃序号不大于lastSeq的消息，重连补发的消息可能和实时转发的重复；
+    // 用户主动查看历史消息时关闭
+    private boolean dedupe = true;
+    // 重连后等待服务器回复RESUME，在这之前收到的是服务器默认发送的大厅最近消息，和补发的重复
+    private boolean resuming;
+    // 最后一次收到服务器数据的时间，以及这次空闲期间是否已经发过PING，只由网络线程访问
+    private long lastReceived;
+    private boolean pinged;
 
     public ChatClient() {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
@@ -53,86 +90,294 @@ public class ChatClient {
     }
 
     public void start() {
+        // 处理用户的输入，重连时不需要重新启动
+        new Thread(new UserInputHandler(this)).start();
+        long backoff = MIN_BACKOFF;
+        boolean resume = false;
+        while (!quit) {
+            if (connect(resume)) {
+                backoff = MIN_BACKOFF;
+                resume = true;
+            }
+            if (quit) {
+                break;
+            }
+            System.out.println("与服务器的连接已断开，" + backoff + "毫秒后重连");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * 连接服务器并处理事件，直到连接断开
+     * @param resume 是否是重连
+     * @return 是否连接成功过
+     */
+    private boolean connect(boolean resume) {
+        boolean established = false;
         try {
+            selector = Selector.open();
+            if (quit) {
+                // 用户在重连的等待期间退出了
+                close(selector);
+                return false;
+            }
             client = SocketChannel.open();
             client.configureBlocking(false);
-
-            selector = Selector.open();
             // 监听客户端是否连接到服务器
             client.register(selector, SelectionKey.OP_CONNECT);
             client.connect(new InetSocketAddress(host, port));
+            rBuffer.clear();
 
             while (true) {
-                selector.select();
+                selector.select(ACK_INTERVAL);
                 Set<SelectionKey> selectionKeys = selector.selectedKeys();
                 for (SelectionKey key : selectionKeys) {
-                    handles(key);
+                    if (key.isConnectable()) {
+                        finishConnect(resume);
+                        established = true;
+                    } else if (key.isReadable() && !read()) {
+                        // 服务器异常
+                        return established;
+                    }
                 }
                 selectionKeys.clear();
+                if (established) {
+                    ack();
+                    if (!heartbeat()) {
+                        System.out.println("服务器" + SERVER_TIMEOUT + "毫秒没有响应");
+                        return established;
+                    }
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (established) {
+                e.printStackTrace();
+            } else {
+                System.out.println("连接服务器失败：" + e.getMessage());
+            }
         } catch (ClosedSelectorException e) {
             // 用户正常退出
         } finally {
+            synchronized (this) {
+                connected = false;
+            }
+            close(client);
             close(selector);
         }
+        return established;
     }
 
-    private void handles(SelectionKey key) throws IOException {
-        // CONNECT事件 - 连接就绪事件
-        if (key.isConnectable()) {
-            SocketChannel client = (SocketChannel) key.channel();
-            // 证明client连接就绪
-            if (client.isConnectionPending()) {
-                // 完成建立连接
-                client.finishConnect();
-                // 处理用户的输入
-                new Thread(new UserInputHandler(this)).start();
-            }
-            client.register(selector, SelectionKey.OP_READ);
-        }
-        // READ事件 -  服务器转发消息
-        else if (key.isReadable()) {
-            SocketChannel client = (SocketChannel) key.channel();
-            String msg = receive(client);
-            if (msg.isEmpty()) {
-                // 服务器异常
-                close(selector);
-            } else {
-                System.out.println(msg);
+    /**
+     * 完成建立连接，重连时重新登录，并从当前房间收到的最后一条消息之后继续
+     */
+    private synchronized void finishConnect(boolean resume) throws IOException {
+        // 证明client连接就绪
+        if (client.isConnectionPending()) {
+            // 完成建立连接
+            client.finishConnect();
+        }
+        client.register(selector, SelectionKey.OP_READ);
+        connected = true;
+        lastReceived = System.currentTimeMillis();
+        pinged = false;
+        if (!resume) {
+            return;
+        }
+        System.out.println("已重新连接到服务器");
+        if (login != null) {
+            write(codec.encode(Frame.text(login)));
+        }
+        dedupe = true;
+        resuming = true;
+        write(Messages.resume(codec, lastSeq, room));
+    }
+
+    /**
+     * READ事件 - 服务器转发消息
+     * @return 连接是否仍然打开
+     */
+    private boolean read() throws IOException {
+        boolean open;
+        // 解码或者处理中抛出异常时也要清空，否则重连后会再处理一次
+        try {
+            open = receive(client);
+            lastReceived = System.currentTimeMillis();
+            pinged = false;
+            for (Frame frame : frames) {
+                if (frame.getType() == FrameType.PING) {
+                    pong();
+                } else if (frame.getType() == FrameType.MESSAGE) {
+                    if (received(Messages.room(frame), Messages.seq(frame))) {
+                        System.out.println(Messages.sender(frame) + ":" + Messages.text(frame));
+                    }
+                } else if (frame.getType() == FrameType.RESUME) {
+                    resumed(Messages.room(frame), Messages.seq(frame));
+                } else if (frame.getType() == FrameType.PRIVATE) {
+                    System.out.println("[私聊]" + Messages.sender(frame) + ":" + Messages.text(frame));
+                } else if (frame.getType() != FrameType.ACK && frame.getType() != FrameType.PONG) {
+                    // ACK只是服务器确认消息已经保存，PONG只是心跳，不需要显示
+                    System.out.println(frame.text());
+                }
             }
+        } finally {
+            frames.clear();
         }
+        return open;
     }
 
     /**
-     * UserInputHandler调用
+     * 记录收到的房间消息
+     * @return 是否需要显示，其他房间的消息和重复的消息不显示
+     */
+    private synchronized boolean received(String messageRoom, long seq) {
+        if (resuming || !room.equals(messageRoom)) {
+            return false;
+        }
+        if (seq <= lastSeq) {
+            return !dedupe;
+        }
+        lastSeq = seq;
+        return true;
+    }
+
+    /**
+     * 服务器回复实际从哪个序号继续，服务器重启过并且没有保存历史时序号会重新开始
+     */
+    private synchronized void resumed(String resumedRoom, long seq) {
+        if (room.equals(resumedRoom)) {
+            resuming = false;
+            lastSeq = seq;
+            ackedSeq = Math.min(ackedSeq, seq);
+        }
+    }
+
+    /**
+     * 向服务器确认到lastSeq为止的消息，只在有新消息时发送
+     */
+    private synchronized void ack() throws IOException {
+        if (lastSeq > ackedSeq) {
+            write(Messages.ack(codec, lastSeq, room));
+            ackedSeq = lastSeq;
+        }
+    }
+
+    /**
+     * 回复服务器的心跳
+     */
+    private synchronized void pong() throws IOException {
+        write(Messages.pong(codec));
+    }
+
+    /**
+     * 服务器空闲时发送一次PING，发送后仍然没有收到任何数据则认为连接已经断开
+     * 对方进程崩溃、网线断开时TCP连接不会收到FIN，只能靠心跳发现
+     * @return 连接是否仍然可用
+     */
+    private synchronized boolean heartbeat() throws IOException {
+        long idle = System.currentTimeMillis() - lastReceived;
+        if (idle >= SERVER_TIMEOUT) {
+            return false;
+        }
+        if (idle >= HEARTBEAT && !pinged) {
+            write(Messages.ping(codec));
+            pinged = true;
+        }
+        return true;
+    }
+
+    /**
+     * UserInputHandler调用，断线期间输入的消息会被丢弃
      * @param msg 输入的信息
      * @throws IOException
      */
-    public void send(String msg) throws IOException {
+    public synchronized void send(String msg) throws IOException {
         if (msg.isEmpty()) {
             return;
         }
 
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        wBuffer.flip();
-        while (wBuffer.hasRemaining()) {
-            client.write(wBuffer);
-        }
-
         // 检查用户是否准备退出
         if (readyToQuit(msg)) {
+            quit = true;
+            if (connected) {
+                write(codec.encode(Frame.text(msg)));
+            }
             close(selector);
+            return;
+        }
+        if (!connected) {
+            System.out.println("正在重连服务器，消息没有发送");
+            return;
+        }
+        write(codec.encode(Frame.text(msg)));
+        track(msg);
+    }
+
+    /**
+     * 根据发出的命令记录登录的用户和所在的房间
+     */
+    private void track(String msg) {
+        String[] parts = msg.trim().split("\\s+", 2);
+        switch (parts[0]) {
+            case "/login":
+                login = msg;
+                break;
+            case "/join":
+                if (parts.length == 2) {
+                    switchRoom(parts[1]);
+                }
+                break;
+            case "/leave":
+                switchRoom(LOBBY);
+                break;
+            case "/history":
+                dedupe = false;
+                break;
+            default:
+        }
+    }
+
+    private void switchRoom(String newRoom) {
+        room = newRoom;
+        resuming = false;
+        lastSeq = 0;
+        ackedSeq = 0;
+        dedupe = true;
+    }
+
+    private void write(ByteBuffer wBuffer) throws IOException {
+        while (wBuffer.hasRemaining()) {
+            client.write(wBuffer);
         }
     }
 
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear();
-        while (client.read(rBuffer) > 0);
+    /**
+     * 读取服务器发来的字节，并把完整的帧解码到frames中
+     * @return 连接是否仍然打开
+     */
+    private boolean receive(SocketChannel client) throws IOException {
+        int count;
+        while ((count = client.read(rBuffer)) > 0) {
+            if (!rBuffer.hasRemaining()) {
+                if (rBuffer.capacity() >= codec.maxEncodedLength()) {
+                    break;
+                }
+                // 帧比缓冲区大，扩容
+                ByteBuffer expanded = ByteBuffer.allocate(Math.min(rBuffer.capacity() * 2, codec.maxEncodedLength()));
+                rBuffer.flip();
+                expanded.put(rBuffer);
+                rBuffer = expanded;
+            }
+        }
         rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+        codec.decode(rBuffer, frames);
+        rBuffer.compact();
+        return count >= 0;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,107 @@
+package loadgen;
+
+import metrics.Histogram;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无界面的压测工具，用少量selector线程模拟成千上万个聊天客户端
+ * 客户端按房间分组，每个客户端按固定速率发送消息，其他成员收到时统计端到端延迟
+ * 所有参数通过-Dload.xxx系统属性传入，见LoadGeneratorConfig
+ * 例如：java -Dload.clients=20000 -Dload.selectors=4 -Dload.roomSize=20 loadgen.LoadGenerator
+ * 客户端超过大约28000个时需要设置load.sourceAddresses，并调大ulimit -n
+ */
+public class LoadGenerator {
+
+    private final LoadGeneratorConfig config;
+    private final LoadStats stats = new LoadStats();
+    private final SessionLoop[] loops;
+
+    public LoadGenerator(LoadGeneratorConfig config) throws IOException {
+        this.config = config;
+        this.loops = new SessionLoop[Math.max(1, config.getSelectors())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SessionLoop(config, stats);
+        }
+        // 按连接速率错开每个客户端的连接时间
+        long start = System.nanoTime();
+        long connectInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.getConnectRate());
+        for (int i = 0; i < config.getClients(); i++) {
+            SimulatedSession session = new SimulatedSession(i, "load-" + i / Math.max(1, config.getRoomSize()));
+            loops[i % loops.length].add(session, start + i * connectInterval);
+        }
+    }
+
+    public void run() throws InterruptedException {
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "loadgen-selector-" + i);
+            threads[i].start();
+        }
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        boolean warmedUp = config.getWarmupSeconds() == 0;
+        long intervalStart = start;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (System.nanoTime() < end) {
+            long next = Math.min(end, System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getReportIntervalSeconds()));
+            if (!warmedUp) {
+                next = Math.min(next, warmupEnd);
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            long now = System.nanoTime();
+            report(now - start, now - intervalStart, stats.sent.sum() - lastSent, stats.received.sum() - lastReceived);
+            if (!warmedUp && now >= warmupEnd) {
+                System.out.println("预热结束，开始统计");
+                stats.reset();
+                warmedUp = true;
+            }
+            intervalStart = now;
+            lastSent = stats.sent.sum();
+            lastReceived = stats.received.sum();
+        }
+        for (SessionLoop loop : loops) {
+            loop.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        summary(System.nanoTime() - warmupEnd);
+    }
+
+    private void report(long elapsed, long interval, long sent, long received) {
+        double seconds = interval / 1e9;
+        Histogram latency = stats.interval;
+        System.out.printf("[%5ds] 连接 %d 发送 %.0f/s 接收 %.0f/s 延迟(ms) p50 %.3f p99 %.3f max %.3f%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed), stats.connected.get(), sent / seconds, received / seconds,
+                millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+                millis(latency.getMax()));
+        latency.reset();
+    }
+
+    private void summary(long elapsed) {
+        double seconds = elapsed / 1e9;
+        Histogram latency = stats.total;
+        System.out.printf("压测结束：%d个客户端，每个房间%d个，每个客户端每秒%.2f条消息，正文%d字节%n",
+                config.getClients(), config.getRoomSize(), config.getMessageRate(), config.getPayloadBytes());
+        System.out.printf("发送 %d 条 (%.0f/s)，接收 %d 条 (%.0f/s, %.2f MB/s)，服务器断开 %d 次，错误 %d 次%n",
+                stats.sent.sum(), stats.sent.sum() / seconds, stats.received.sum(), stats.received.sum() / seconds,
+                stats.receivedBytes.sum() / seconds / 1024 / 1024, stats.disconnects.sum(), stats.errors.sum());
+        System.out.printf("端到端延迟(ms)：mean %.3f p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f p99.99 %.3f max %.3f (%d个样本)%n",
+                latency.getMean() / 1e6, millis(latency.getValueAtPercentile(50)),
+                millis(latency.getValueAtPercentile(90)), millis(latency.getValueAtPercentile(99)),
+                millis(latency.getValueAtPercentile(99.9)), millis(latency.getValueAtPercentile(99.99)),
+                millis(latency.getMax()), latency.getTotalCount());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        new LoadGenerator(LoadGeneratorConfig.fromSystemProperties()).run();
+    }
+}
@@ -0,0 +1,170 @@
+package loadgen;
+
+/**
+ * 压测工具的可配置参数，通过-Dload.xxx系统属性传入
+ */
+public class LoadGeneratorConfig {
+
+    private String host = "127.0.0.1";
+    private int port = 7777;
+    // 模拟的客户端总数
+    private int clients = 1000;
+    // selector线程数，所有客户端平均分配到这些线程上
+    private int selectors = 2;
+    // 每个房间的客户端数，房间数 = clients / roomSize
+    private int roomSize = 50;
+    // 每个客户端每秒发送的消息数，可以是小数
+    private double messageRate = 1;
+    // 每条消息正文的字节数，不包括开头的时间戳
+    private int payloadBytes = 64;
+    // 压测时长(秒)，不包括预热
+    private int durationSeconds = 30;
+    // 预热时长(秒)，预热期间的统计数据不计入最终结果
+    private int warmupSeconds = 5;
+    // 每秒建立的新连接数，避免启动时所有客户端同时连接
+    private int connectRate = 2000;
+    // 每秒随机断开并重连的客户端数，0表示不断开
+    private int churnRate = 0;
+    // 断开后多久重连(毫秒)
+    private long reconnectDelayMillis = 100;
+    // 本地使用的回环地址数，每个源地址最多大约28000个临时端口，客户端更多时使用127.0.0.x轮流连接
+    private int sourceAddresses = 1;
+    // 打印中间结果的间隔(秒)
+    private int reportIntervalSeconds = 5;
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors) {
+        this.selectors = selectors;
+    }
+
+    public int getRoomSize() {
+        return roomSize;
+    }
+
+    public void setRoomSize(int roomSize) {
+        this.roomSize = roomSize;
+    }
+
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    public void setMessageRate(double messageRate) {
+        this.messageRate = messageRate;
+    }
+
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public void setPayloadBytes(int payloadBytes) {
+        this.payloadBytes = payloadBytes;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public void setWarmupSeconds(int warmupSeconds) {
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    public int getConnectRate() {
+        return connectRate;
+    }
+
+    public void setConnectRate(int connectRate) {
+        this.connectRate = connectRate;
+    }
+
+    public int getChurnRate() {
+        return churnRate;
+    }
+
+    public void setChurnRate(int churnRate) {
+        this.churnRate = churnRate;
+    }
+
+    public long getReconnectDelayMillis() {
+        return reconnectDelayMillis;
+    }
+
+    public void setReconnectDelayMillis(long reconnectDelayMillis) {
+        this.reconnectDelayMillis = reconnectDelayMillis;
+    }
+
+    public int getSourceAddresses() {
+        return sourceAddresses;
+    }
+
+    public void setSourceAddresses(int sourceAddresses) {
+        this.sourceAddresses = sourceAddresses;
+    }
+
+    public int getReportIntervalSeconds() {
+        return reportIntervalSeconds;
+    }
+
+    public void setReportIntervalSeconds(int reportIntervalSeconds) {
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+
+    /**
+     * 从系统属性中读取配置，没有设置的使用默认值
+     * @return 配置
+     */
+    public static LoadGeneratorConfig fromSystemProperties() {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        config.setHost(System.getProperty("load.host", config.getHost()));
+        config.setPort(Integer.getInteger("load.port", config.getPort()));
+        config.setClients(Integer.getInteger("load.clients", config.getClients()));
+        config.setSelectors(Integer.getInteger("load.selectors", config.getSelectors()));
+        config.setRoomSize(Integer.getInteger("load.roomSize", config.getRoomSize()));
+        config.setMessageRate(Double.parseDouble(
+                System.getProperty("load.messageRate", String.valueOf(config.getMessageRate()))));
+        config.setPayloadBytes(Integer.getInteger("load.payloadBytes", config.getPayloadBytes()));
+        config.setDurationSeconds(Integer.getInteger("load.duration", config.getDurationSeconds()));
+        config.setWarmupSeconds(Integer.getInteger("load.warmup", config.getWarmupSeconds()));
+        config.setConnectRate(Integer.getInteger("load.connectRate", config.getConnectRate()));
+        config.setChurnRate(Integer.getInteger("load.churnRate", config.getChurnRate()));
+        config.setReconnectDelayMillis(Long.getLong("load.reconnectDelay", config.getReconnectDelayMillis()));
+        config.setSourceAddresses(Integer.getInteger("load.sourceAddresses", config.getSourceAddresses()));
+        config.setReportIntervalSeconds(Integer.getInteger("load.reportInterval", config.getReportIntervalSeconds()));
+        return config;
+    }
+}
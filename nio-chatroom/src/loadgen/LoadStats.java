@@ -0,0 +1,47 @@
+package loadgen;
+
+import metrics.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有selector线程共用的统计数据
+ * 延迟同时记录到本次报告的直方图和总的直方图，报告之后清空本次的
+ */
+class LoadStats {
+
+    // 延迟的单位是纳秒，最多统计到1分钟，相对误差不超过1/64
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+    private static final int PRECISION_BITS = 7;
+
+    final AtomicInteger connected = new AtomicInteger();
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder receivedBytes = new LongAdder();
+    // 服务器主动断开的次数，例如慢消费者被断开
+    final LongAdder disconnects = new LongAdder();
+    // 连接失败、读写失败的次数
+    final LongAdder errors = new LongAdder();
+    final Histogram interval = new Histogram(MAX_LATENCY, PRECISION_BITS);
+    final Histogram total = new Histogram(MAX_LATENCY, PRECISION_BITS);
+
+    void recordLatency(long nanos) {
+        interval.record(nanos);
+        total.record(nanos);
+    }
+
+    /**
+     * 预热结束时清空累计的数据
+     */
+    void reset() {
+        sent.reset();
+        received.reset();
+        receivedBytes.reset();
+        disconnects.reset();
+        errors.reset();
+        interval.reset();
+        total.reset();
+    }
+}
@@ -0,0 +1,361 @@
+package loadgen;
+
+import codec.Frame;
+import codec.FrameCodec;
+import codec.FrameType;
+import codec.Messages;
+import codec.VarintFrameCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个selector线程，驱动分配给它的所有模拟客户端
+ * 没有每个客户端一个线程：按发送时间排序的优先队列决定select等待多久，
+ * 到时间的客户端发送一条带时间戳的消息，收到消息时用时间戳计算端到端延迟
+ * 生成器和服务器在同一台机器上，所以可以直接比较System.nanoTime
+ */
+class SessionLoop implements Runnable {
+
+    // 没有任何事件时最多等待的时间，用来及时处理断开重连
+    private static final long MAX_WAIT_MILLIS = 10;
+
+    private final LoadGeneratorConfig config;
+    private final LoadStats stats;
+    private final Selector selector;
+    private final FrameCodec codec = new VarintFrameCodec();
+    private final List<Frame> frames = new ArrayList<>();
+    private final InetSocketAddress server;
+    private final List<SimulatedSession> sessions = new ArrayList<>();
+    // 按下一次发送时间排序的已连接客户端
+    private final PriorityQueue<SimulatedSession> sendQueue =
+            new PriorityQueue<>(Comparator.comparingLong(session -> session.nextSendNanos));
+    // 等待连接的客户端和连接时间，连接时间递增，所以用普通队列就可以
+    private final Queue<SimulatedSession> connectQueue = new ArrayDeque<>();
+    private final Queue<Long> connectTimes = new ArrayDeque<>();
+    // 两条消息之间的间隔
+    private final long sendInterval;
+    // 每个客户端的消息正文都一样，只有开头的时间戳不同
+    private final String payload;
+    // 每纳秒断开的客户端数，以及累积的还没有断开的部分
+    private final double churnPerNano;
+    private double churnCredit;
+    private long lastChurn;
+    private volatile boolean running = true;
+
+    SessionLoop(LoadGeneratorConfig config, LoadStats stats) throws IOException {
+        this.config = config;
+        this.stats = stats;
+        this.selector = Selector.open();
+        this.server = new InetSocketAddress(config.getHost(), config.getPort());
+        this.sendInterval = config.getMessageRate() > 0
+                ? (long) (TimeUnit.SECONDS.toNanos(1) / config.getMessageRate()) : Long.MAX_VALUE;
+        StringBuilder builder = new StringBuilder(config.getPayloadBytes());
+        for (int i = 0; i < config.getPayloadBytes(); i++) {
+            builder.append('x');
+        }
+        this.payload = builder.toString();
+        this.churnPerNano = (double) config.getChurnRate() / config.getSelectors() / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * 在start之前调用，安排客户端在connectAt时连接
+     */
+    void add(SimulatedSession session, long connectAt) {
+        sessions.add(session);
+        scheduleConnect(session, connectAt);
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        lastChurn = System.nanoTime();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                connectDue(now);
+                churn(now);
+                sendDue(now);
+                long wait = waitMillis(System.nanoTime());
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SimulatedSession session : sessions) {
+                close(session);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return 距离下一个到期事件的毫秒数，向上取整
+     */
+    private long waitMillis(long now) {
+        long next = now + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+        if (!connectTimes.isEmpty()) {
+            next = Math.min(next, connectTimes.peek());
+        }
+        if (!sendQueue.isEmpty()) {
+            next = Math.min(next, sendQueue.peek().nextSendNanos);
+        }
+        return next <= now ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now));
+    }
+
+    private void scheduleConnect(SimulatedSession session, long connectAt) {
+        connectQueue.offer(session);
+        connectTimes.offer(connectAt);
+    }
+
+    private void connectDue(long now) {
+        while (!connectTimes.isEmpty() && connectTimes.peek() <= now) {
+            connectTimes.poll();
+            connect(connectQueue.poll());
+        }
+    }
+
+    private void connect(SimulatedSession session) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            session.channel = channel;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (config.getSourceAddresses() > 1) {
+                channel.bind(new InetSocketAddress("127.0.0." + (1 + session.id % config.getSourceAddresses()), 0));
+            }
+            session.key = channel.register(selector, SelectionKey.OP_CONNECT, session);
+            if (channel.connect(server)) {
+                connected(session);
+            }
+        } catch (IOException e) {
+            failed(session);
+        }
+    }
+
+    /**
+     * 连接建立后加入房间，并在随机的时间开始发送，避免所有客户端同时发送
+     */
+    private void connected(SimulatedSession session) throws IOException {
+        session.key.interestOps(SelectionKey.OP_READ);
+        session.connected = true;
+        session.connectedAt = System.nanoTime();
+        stats.connected.incrementAndGet();
+        write(session, codec.encode(Frame.text("/join " + session.room)));
+        if (!session.scheduled && sendInterval != Long.MAX_VALUE) {
+            session.nextSendNanos = session.connectedAt + ThreadLocalRandom.current().nextLong(sendInterval);
+            session.scheduled = true;
+            sendQueue.offer(session);
+        }
+    }
+
+    /**
+     * 随机断开已连接的客户端，过一段时间后重连
+     */
+    private void churn(long now) {
+        if (churnPerNano == 0) {
+            return;
+        }
+        churnCredit += (now - lastChurn) * churnPerNano;
+        lastChurn = now;
+        while (churnCredit >= 1) {
+            churnCredit--;
+            SimulatedSession session = sessions.get(ThreadLocalRandom.current().nextInt(sessions.size()));
+            if (session.connected) {
+                close(session);
+                scheduleConnect(session, now + TimeUnit.MILLISECONDS.toNanos(config.getReconnectDelayMillis()));
+            }
+        }
+    }
+
+    private void sendDue(long now) {
+        while (!sendQueue.isEmpty() && sendQueue.peek().nextSendNanos <= now) {
+            SimulatedSession session = sendQueue.poll();
+            if (!session.connected) {
+                // 重连之后重新加入
+                session.scheduled = false;
+                continue;
+            }
+            String text = "#" + System.nanoTime() + " " + payload;
+            if (write(session, codec.encode(Frame.text(text)))) {
+                stats.sent.increment();
+            }
+            // 落后太多时不补发，从现在开始重新计时
+            session.nextSendNanos = Math.max(session.nextSendNanos + sendInterval, now - sendInterval);
+            if (session.connected) {
+                sendQueue.offer(session);
+            } else {
+                session.scheduled = false;
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        SimulatedSession session = (SimulatedSession) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                session.channel.finishConnect();
+                connected(session);
+                return;
+            }
+            if (key.isReadable() && !read(session)) {
+                stats.disconnects.increment();
+                close(session);
+                scheduleConnect(session, System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(config.getReconnectDelayMillis()));
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(session);
+            }
+        } catch (IOException e) {
+            failed(session);
+        }
+    }
+
+    /**
+     * 读取并解码服务器发来的帧，用消息中的时间戳计算延迟
+     * @return 连接是否仍然打开
+     */
+    private boolean read(SimulatedSession session) throws IOException {
+        int count;
+        while ((count = session.channel.read(session.rBuffer)) > 0) {
+            stats.receivedBytes.add(count);
+            if (!session.rBuffer.hasRemaining()) {
+                if (session.rBuffer.capacity() >= codec.maxEncodedLength()) {
+                    break;
+                }
+                // 帧比缓冲区大，扩容
+                ByteBuffer expanded = ByteBuffer.allocate(
+                        Math.min(session.rBuffer.capacity() * 2, codec.maxEncodedLength()));
+                session.rBuffer.flip();
+                expanded.put(session.rBuffer);
+                session.rBuffer = expanded;
+            }
+        }
+        session.rBuffer.flip();
+        codec.decode(session.rBuffer, frames);
+        session.rBuffer.compact();
+        long now = System.nanoTime();
+        for (Frame frame : frames) {
+            if (frame.getType() == FrameType.MESSAGE) {
+                stats.received.increment();
+                long sentAt = timestamp(Messages.text(frame));
+                if (sentAt >= session.connectedAt) {
+                    stats.recordLatency(now - sentAt);
+                }
+            } else if (frame.getType() == FrameType.PING) {
+                // 不发消息的客户端靠回复心跳保持连接
+                write(session, Messages.pong(codec));
+            }
+        }
+        frames.clear();
+        return count >= 0;
+    }
+
+    /**
+     * @return 消息开头的发送时间，不是压测消息时返回Long.MIN_VALUE
+     */
+    private static long timestamp(String text) {
+        int end = text.indexOf(' ');
+        if (!text.startsWith("#") || end < 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Long.parseLong(text.substring(1, end));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * 写不完的部分放入待发送队列，等OP_WRITE时继续
+     * @return 是否写入或者放入了待发送队列
+     */
+    private boolean write(SimulatedSession session, ByteBuffer buffer) {
+        try {
+            if (session.pending.isEmpty()) {
+                session.channel.write(buffer);
+            }
+            if (buffer.hasRemaining()) {
+                session.pending.offer(buffer);
+                session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            return true;
+        } catch (IOException e) {
+            failed(session);
+            return false;
+        }
+    }
+
+    private void flush(SimulatedSession session) throws IOException {
+        while (!session.pending.isEmpty()) {
+            ByteBuffer buffer = session.pending.peek();
+            session.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            session.pending.poll();
+        }
+        session.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void failed(SimulatedSession session) {
+        stats.errors.increment();
+        close(session);
+        scheduleConnect(session, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getReconnectDelayMillis()));
+    }
+
+    private void close(SimulatedSession session) {
+        if (session.connected) {
+            session.connected = false;
+            stats.connected.decrementAndGet();
+        }
+        if (session.channel != null) {
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            session.channel = null;
+        }
+        session.key = null;
+        session.pending.clear();
+        session.rBuffer.clear();
+    }
+}
@@ -0,0 +1,36 @@
+package loadgen;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * 一个模拟的聊天客户端，只在所属的SessionLoop线程中访问
+ */
+class SimulatedSession {
+
+    private static final int BUFFER = 4096;
+
+    final int id;
+    final String room;
+    SocketChannel channel;
+    SelectionKey key;
+    boolean connected;
+    // 是否在发送队列中，断线重连后不重复加入
+    boolean scheduled;
+    // 下一条消息的发送时间
+    long nextSendNanos;
+    // 连接建立的时间，更早发送的消息是服务器补发的历史消息，不计入延迟
+    long connectedAt;
+    // 累积读缓冲区，保存还没有凑成完整帧的字节
+    ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
+    // 没有写完的数据，不为空时注册了OP_WRITE
+    final Queue<ByteBuffer> pending = new ArrayDeque<>();
+
+    SimulatedSession(int id, String room) {
+        this.id = id;
+        this.room = room;
+    }
+}
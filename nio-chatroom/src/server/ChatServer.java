@@ -1,39 +1,75 @@
 package server;
 
+import buffer.SharedBuffer;
+import codec.Frame;
+import codec.VarintFrameCodec;
+import history.Durability;
+import history.HistoryStore;
+import history.RecentHistory;
+import history.WriteAheadLog;
+import logging.AsyncLogger;
+import metrics.MetricsHttpServer;
+import session.UserIndex;
+
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
-import java.nio.charset.Charset;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
 
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
-    // 1024个字节的缓冲区
-    private static final int BUFFER = 1024;
-
-    private ServerSocketChannel server;
-    // 不同于BIO的多线程，用Selector+单线程实现
-    private Selector selector;
-    // 从通道中读取消息
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    // 向通道中写入消息
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
-    // 统一解码
-    private Charset charset = Charset.forName("UTF-8");
+    private static final byte[] QUIT = "quit".getBytes(StandardCharsets.UTF_8);
+
+    // 监听的channel：默认只有一个，由boss accept；SO_REUSEPORT模式下每个worker一个
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    // 是否工作在SO_REUSEPORT模式
+    private volatile boolean reusePort;
+    // 主从Reactor模型：boss只负责accept，workers负责读写
+    // workerCount为0时退化成原来的单Reactor单线程模型
+    private Reactor boss;
+    private Reactor[] workers;
+    // 轮询分配连接，只在boss线程中使用
+    private int nextWorker;
+    // 房间注册表
+    private RoomRegistry rooms;
+    // 用户ID到连接的索引，私聊时直接查找
+    private UserIndex<Connection> users = new UserIndex<>();
+    // 每个房间的历史消息日志，没有配置目录时为null
+    private HistoryStore history;
+    // 组提交的预写日志，不需要持久化确认时为null
+    private WriteAheadLog wal;
+    // 每个房间的序号、历史日志和最近消息，房间没人时也保留，空闲超时后释放
+    private final ConcurrentMap<String, RoomLog> roomLogs = new ConcurrentHashMap<>();
+    // 登录用户在每个房间中确认收到的最后一条消息的序号，key = 用户ID@房间名
+    private final ConcurrentMap<String, Long> cursors = new ConcurrentHashMap<>();
+    // 指标，以及给Prometheus抓取的HTTP服务器，没有配置端口时为null
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private MetricsHttpServer metricsServer;
     // 自定义端口
     private int port;
+    private ChatServerConfig config;
 
     public ChatServer() {
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
+        this(port, new ChatServerConfig());
+    }
+
+    public ChatServer(int port, ChatServerConfig config) {
         this.port = port;
+        this.config = config;
     }
 
     /**
@@ -41,135 +77,313 @@ public class ChatServer {
      */
     public void start() {
         try {
-            // 开启通道，默认阻塞
-            server = ServerSocketChannel.open();
-            // 开启非阻塞——BIO没有的
-            server.configureBlocking(false);
-            // socket函数返回绑定的serverSocket
-            // bind函数将serverSocket绑定到对应端口
-            server.socket().bind(new InetSocketAddress(port));
-
-            // 创建selector
-            selector = Selector.open();
-            // 将serverSocketChannel注册到selector上，并开启accept状态监听
-            // 以后一旦serverSocketChannel接收某个客户端连接，就能被发现
-            server.register(selector, SelectionKey.OP_ACCEPT);
-            // log
-            System.out.println("启动服务器，监听端口" + port + "...");
-
-            while (true) {
-                // 至少有一个Channel注册的状态触发，否则阻塞
-                // 这就是和BIO不同的地方，因为非阻塞，所以可以连接多个客户端
-                selector.select();
-                // 返回所有被触发的状态的集合
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                // handles处理过程——处理被触发的事件
-                for (SelectionKey selectionKey : selectionKeys) {
-                    handles(selectionKey);
+            if (config.getHistoryDir() != null) {
+                // 日志中保存的就是编码好的帧，读出来原样发送，所以要求是同一种格式
+                if (!(config.getCodec() instanceof VarintFrameCodec)) {
+                    throw new IllegalArgumentException("历史消息日志只支持VarintFrameCodec");
+                }
+                history = new HistoryStore(new File(config.getHistoryDir()));
+            }
+            if (config.getDurability() != Durability.NONE) {
+                if (history == null) {
+                    throw new IllegalArgumentException("持久化需要配置historyDir");
                 }
-                // 清除状态，否则所有状态会一直保留，影响下一次
-                selectionKeys.clear();
+                wal = new WriteAheadLog(config.getDurability(), config.getWalBatchBytes(),
+                        config.getWalMaxDelayMillis());
+            }
+
+            if (config.getMetricsPort() > 0) {
+                metricsServer = new MetricsHttpServer(metrics.getRegistry(), config.getMetricsPort());
+                metricsServer.start();
             }
 
+            int workerCount = config.getWorkerCount();
+            boss = new Reactor(this, config, "boss", 0);
+            rooms = new RoomRegistry(Math.max(workerCount, 1));
+            if (workerCount > 0) {
+                // 每个worker一个Selector一个线程
+                workers = new Reactor[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    workers[i] = new Reactor(this, config, "worker-" + i, i);
+                    new Thread(workers[i], "nio-" + workers[i].getName()).start();
+                }
+            } else {
+                workers = new Reactor[]{boss};
+            }
+            if (config.isReusePort() && workerCount > 0 && supportsReusePort()) {
+                // 每个worker自己监听、accept并处理自己的连接，boss不再参与
+                reusePort = true;
+                for (Reactor worker : workers) {
+                    worker.register(listen(true));
+                }
+                System.out.println("SO_REUSEPORT模式，" + workerCount + "个worker各自监听");
+            } else {
+                if (config.isReusePort() && workerCount > 0) {
+                    System.out.println("系统不支持SO_REUSEPORT，由boss accept");
+                }
+                // 将serverSocketChannel注册到boss的selector上，并开启accept状态监听
+                boss.register(listen(false));
+            }
+            // log
+            System.out.println("启动服务器，监听端口" + port + "，worker数量" + workerCount + "...");
+
+            if (config.getRoomIdleTimeoutMillis() > 0) {
+                boss.execute(this::scheduleRoomRelease);
+            }
+            // boss在当前线程中运行
+            boss.run();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            // 关闭selector，同时也会关闭所有被注册的channel
-            close(selector);
+            shutdown();
         }
     }
 
     /**
-     * 处理状态分为：accept(ServerSocketChannel), read(SocketChannel)
-     * @param selectionKey 状态
+     * 关闭所有Reactor
      */
-    private void handles(SelectionKey selectionKey) throws IOException {
-        // ACCEPT事件——和客户端建立连接
-        if (selectionKey.isAcceptable()) {
-            ServerSocketChannel serverChannel = (ServerSocketChannel) selectionKey.channel();
-            SocketChannel client = serverChannel.accept();
-            client.configureBlocking(false);
-            client.register(selector, SelectionKey.OP_READ);
-            System.out.println(getClientName(client) + "已连接到服务器");
+    public void shutdown() {
+        if (workers != null) {
+            for (Reactor worker : workers) {
+                worker.shutdown();
+            }
         }
-        // READ事件——客户端向服务器端发送消息
-        else if (selectionKey.isReadable()) {
-            // 1.读取客户端发送的消息
-            SocketChannel client = (SocketChannel) selectionKey.channel();
-            String fwdMsg = receive(client);
-            // 2. 转发给其他客户端
-            if (fwdMsg.isEmpty()) {
-                // 空消息，说明异常
-                // 停止监听
-                selectionKey.cancel();
-                // 通知selector把当前select的调用马上返回(因为可以选择阻塞)
-                selector.wakeup();
-            }else {
-                System.out.println(getClientName(client) + ":" + fwdMsg);
-                // 转发给其他客户端
-                forwardMessage(client, fwdMsg);
-
-                // 检查用户是否退出
-                if (readyToQuit(fwdMsg)) {
-                    selectionKey.cancel();
-                    selector.wakeup();
-                    System.out.println(getClientName(client) + "已断开");
+        if (boss != null) {
+            boss.shutdown();
+        }
+        for (ServerSocketChannel listener : listeners) {
+            close(listener);
+        }
+        close(metricsServer);
+        // 先停止写线程，再关闭日志文件
+        close(wal);
+        close(history);
+    }
+
+    /**
+     * 打开一个非阻塞的监听channel并绑定端口
+     * @param reusePort 是否开启SO_REUSEPORT，多个channel绑定同一个端口
+     */
+    private ServerSocketChannel listen(boolean reusePort) throws IOException {
+        // 开启通道，默认阻塞
+        ServerSocketChannel server = ServerSocketChannel.open();
+        listeners.add(server);
+        // 开启非阻塞——BIO没有的
+        server.configureBlocking(false);
+        if (reusePort) {
+            server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        // 将serverSocket绑定到对应端口，backlog决定重连风暴时内核能替我们排队多少连接
+        server.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+        return server;
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * SO_REUSEPORT模式下每个worker accept到的连接直接注册在自己身上
+     * @return 是否由accept的Reactor自己处理新连接
+     */
+    boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * 轮询选出下一个worker，只由boss线程调用
+     */
+    Reactor nextWorker() {
+        Reactor worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        return worker;
+    }
+
+    RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    UserIndex<Connection> getUsers() {
+        return users;
+    }
+
+    HistoryStore getHistory() {
+        return history;
+    }
+
+    WriteAheadLog getWal() {
+        return wal;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    ChatServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return 所有Reactor的任务队列中还没有执行的任务数，只用于监控
+     */
+    long getPendingTasks() {
+        Reactor[] reactors = workers;
+        long pending = boss == null ? 0 : boss.getPendingTasks();
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                if (reactor != boss) {
+                    pending += reactor.getPendingTasks();
                 }
             }
         }
+        return pending;
     }
 
-    private String getClientName(SocketChannel socketChannel) {
-        return "客户端[" + socketChannel.socket().getPort() + "]";
+    /**
+     * 房间的序号、历史日志和最近消息，第一次访问时创建
+     * 返回的对象可能在之后被释放，调用者每次使用都要重新获取，不要保存
+     * @return 房间数量已经达到maxRooms时返回null
+     * @throws IOException 打开历史日志失败
+     */
+    RoomLog getRoomLog(String roomId) throws IOException {
+        for (;;) {
+            RoomLog roomLog = roomLogs.get(roomId);
+            if (roomLog == null) {
+                // 并发创建时可能略微超过上限
+                if (roomLogs.size() >= config.getMaxRooms()) {
+                    return null;
+                }
+                roomLog = createRoomLog(roomId);
+            }
+            synchronized (roomLog) {
+                if (roomLog.touch(System.nanoTime())) {
+                    return roomLog;
+                }
+            }
+            // 刚被释放，已经从表中删除了，重新创建
+        }
     }
 
     /**
-     * 从客户端中获取要转发的消息
-     * @param client 客户端socketChannel
-     * @return 转发的字符串
+     * 已经存在的房间的序号、历史日志和最近消息，不会创建
+     * @return 房间从来没有消息或者已经被释放时返回null
      */
-    private String receive(SocketChannel client) throws IOException {
-        // 把残留的消息清空
-        rBuffer.clear();
-        // 只要rBuffer能从client中读出数据
-        while (client.read(rBuffer) > 0);
-        // 将Buffer的写模式转换成读模式
-        rBuffer.flip();
-        // 按照UTF-8的格式，将rBuffer中的数据转换成字符串
-        return String.valueOf(charset.decode(rBuffer));
+    RoomLog peekRoomLog(String roomId) {
+        return roomLogs.get(roomId);
+    }
+
+    private RoomLog createRoomLog(String roomId) throws IOException {
+        try {
+            return roomLogs.computeIfAbsent(roomId, id -> {
+                try {
+                    // 最近消息的缓冲区在第一条消息时才分配
+                    RecentHistory recent = config.getRecentMessages() > 0 && config.getRecentBytes() > 0
+                            ? new RecentHistory(config.getRecentMessages(), config.getRecentBytes()) : null;
+                    return new RoomLog(id, history != null ? history.log(id) : null, recent);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     /**
-     * 将当前client发送的消息fwdMsg给其他客户端
-     * @param client 消息源客户端
-     * @param fwdMsg 转发消息
+     * 释放没有成员、并且超过roomIdleTimeout没有使用的房间的日志文件和最近消息，在boss线程中定期执行
+     * 加入房间先成为成员再获取RoomLog，释放时在RoomLog的锁中检查房间没有成员，
+     * 所以不会释放一个刚有人加入的房间；之后再有人访问这个房间时重新打开日志，序号从日志恢复
      */
-    private void forwardMessage(SocketChannel client, String fwdMsg) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            if (key.isValid() && key.channel() instanceof SocketChannel) {
-                SocketChannel connectedClient = (SocketChannel) key.channel();
-                if (!client.equals(connectedClient)) {
-                    wBuffer.clear();
-                    wBuffer.put(charset.encode(getClientName(connectedClient) + ":" + fwdMsg));
-                    wBuffer.flip();
-                    while (wBuffer.hasRemaining()) {
-                        connectedClient.write(wBuffer);
+    private void releaseIdleRooms() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getRoomIdleTimeoutMillis());
+        for (RoomLog roomLog : roomLogs.values()) {
+            synchronized (roomLog) {
+                if (now - roomLog.getLastUsed() < idleNanos || rooms.get(roomLog.getId()) != null) {
+                    continue;
+                }
+                roomLog.markReleased();
+                // 先关闭日志再从表中删除，新创建的RoomLog不会拿到正在关闭的日志
+                if (roomLog.getLog() != null) {
+                    try {
+                        history.release(roomLog.getId(), roomLog.getLog());
+                    } catch (IOException e) {
+                        AsyncLogger.getDefault().error("关闭房间" + roomLog.getId() + "的日志出错", e);
                     }
                 }
+                roomLogs.remove(roomLog.getId(), roomLog);
             }
         }
+    }
 
+    /**
+     * 在boss线程中每隔roomIdleTimeout检查一次空闲的房间
+     */
+    private void scheduleRoomRelease() {
+        boss.schedule(() -> {
+            releaseIdleRooms();
+            scheduleRoomRelease();
+        }, TimeUnit.MILLISECONDS.toNanos(config.getRoomIdleTimeoutMillis()));
+    }
+
+    /**
+     * 记录登录用户在房间中确认收到的序号，只会变大
+     */
+    void ack(String userId, String roomId, long seq) {
+        cursors.merge(userId + "@" + roomId, seq, Math::max);
+    }
+
+    /**
+     * @return 登录用户在房间中确认收到的序号，没有记录时返回0
+     */
+    long getCursor(String userId, String roomId) {
+        return cursors.getOrDefault(userId + "@" + roomId, 0L);
+    }
+
+    /**
+     * 将当前client发送的消息转发给同一房间的其他客户端
+     * 消息只编码一次，所有接收者共享同一份buffer，每个Reactor持有一个引用
+     * 有成员的Reactor(包括当前线程所在的)都通过任务队列交给它们自己的线程转发，
+     * 调用者按序号的顺序调用(在房间锁中，或者在按提交顺序执行的预写日志回调中)，任务队列先进先出，
+     * 所以每个客户端收到的消息都是按序号递增的；如果本Reactor直接转发，
+     * 它自己的N+1可能比别的Reactor交来的、还在队列里的N先发出去，客户端会把N当成重复的丢掉
+     * @param sender 消息源客户端
+     * @param room 房间
+     * @param message 编码好的MESSAGE帧
+     */
+    void forwardMessage(Connection sender, Room room, SharedBuffer message) {
+        for (Reactor worker : workers) {
+            if (room.count(worker.getIndex()) > 0) {
+                message.retain();
+                worker.execute(() -> {
+                    try {
+                        worker.forwardLocal(sender, room, message);
+                    } finally {
+                        message.release();
+                    }
+                });
+            }
+        }
     }
 
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    String getClientName(SocketChannel socketChannel) {
+        return "客户端[" + socketChannel.socket().getPort() + "]";
+    }
+
+    /**
+     * 直接比较帧的负载，不需要解码
+     */
+    boolean readyToQuit(Frame frame) {
+        return frame.contentEquals(QUIT);
     }
 
     /**
      * 关闭IO
      * @param closable 系统IO资源
      */
-    private void close(Closeable closable) {
+    void close(Closeable closable) {
         if (closable != null) {
             try {
                 closable.close();
@@ -180,7 +394,11 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer(7777);
+        ChatServerConfig config = ChatServerConfig.fromSystemProperties();
+        if (args.length > 0) {
+            config.setWorkerCount(Integer.parseInt(args[0]));
+        }
+        ChatServer chatServer = new ChatServer(7777, config);
         chatServer.start();
     }
 
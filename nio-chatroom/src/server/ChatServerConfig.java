@@ -0,0 +1,274 @@
+package server;
+
+import buffer.BufferPool;
+import codec.FrameCodec;
+import codec.VarintFrameCodec;
+import history.Durability;
+
+/**
+ * NIO聊天室服务器的可配置参数
+ * 可以直接调用setter，也可以通过-Dchat.xxx系统属性传入
+ */
+public class ChatServerConfig {
+
+    // worker reactor数量，0表示单Reactor单线程
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    // 每个连接待发送数据的高水位(字节)
+    private int highWaterMark = 64 * 1024;
+    // 超过高水位后的处理策略
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    // 帧编解码器，无状态，所有连接共用
+    private FrameCodec codec = new VarintFrameCodec();
+    // 读写消息用的直接内存缓冲区池
+    private BufferPool bufferPool = BufferPool.getDefault();
+    // 历史消息日志的目录，为null时不保存历史消息
+    private String historyDir;
+    // 消息的持久化方式，不是NONE时消息持久化之后才转发，并给发送者回ACK，需要historyDir
+    private Durability durability = Durability.NONE;
+    // 组提交时一批最多的字节数
+    private int walBatchBytes = 256 * 1024;
+    // 组提交时攒一批最多等待的毫秒数，0表示只等上一次force完成期间到达的消息
+    private long walMaxDelayMillis = 0;
+    // 每个房间在内存中保留的最近消息条数和字节数，加入房间时发给新成员，0表示不保留
+    private int recentMessages = 50;
+    private int recentBytes = 64 * 1024;
+    // 最多同时保留多少个房间的序号、历史日志和最近消息，超过后不能再往新房间发消息
+    private int maxRooms = 10_000;
+    // 没有成员的房间多少毫秒没有消息后释放它的日志文件和最近消息，0表示一直保留
+    private long roomIdleTimeoutMillis = 600_000;
+    // Prometheus抓取指标的HTTP端口，0表示不开启
+    private int metricsPort = 0;
+    // 连接多少毫秒没有收到数据时发送PING，0表示不发送心跳
+    private long heartbeatMillis = 30_000;
+    // 连接多少毫秒没有收到数据时断开，0表示不断开，应该是心跳间隔的几倍，给客户端回复PONG的时间
+    private long idleTimeoutMillis = 90_000;
+    // 每个连接每秒最多发送的消息数和字节数，超过后暂停读取这个连接，0表示不限制
+    // 令牌桶的容量是两秒的量，允许短时间的突发
+    private long maxMessagesPerSecond = 100;
+    private long maxBytesPerSecond = 256 * 1024;
+    // 一个房间所有成员待发送队列的总字节数超过这个值时，暂停读取往这个房间发消息的连接，0表示不限制
+    private long roomHighWaterMark = 16 * 1024 * 1024;
+    // 中继模式：消息正文按客户端发来的UTF-8字节原样转发，不解码成字符串再编码
+    // 关闭后服务器会把非法的UTF-8替换成U+FFFD再转发
+    private boolean relay = true;
+    // 监听socket的backlog，重连风暴时内核中排队等待accept的连接数，超过后新的SYN会被丢弃或者拒绝
+    private int acceptBacklog = 4096;
+    // 每个worker用SO_REUSEPORT绑定同一个端口，各自accept，由内核把新连接分散到各个worker，不经过boss
+    // 只在支持SO_REUSEPORT的系统(比如Linux)上生效，否则退回boss accept
+    private boolean reusePort = false;
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public void setHighWaterMark(int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public String getHistoryDir() {
+        return historyDir;
+    }
+
+    public void setHistoryDir(String historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public int getWalBatchBytes() {
+        return walBatchBytes;
+    }
+
+    public void setWalBatchBytes(int walBatchBytes) {
+        this.walBatchBytes = walBatchBytes;
+    }
+
+    public long getWalMaxDelayMillis() {
+        return walMaxDelayMillis;
+    }
+
+    public void setWalMaxDelayMillis(long walMaxDelayMillis) {
+        this.walMaxDelayMillis = walMaxDelayMillis;
+    }
+
+    public int getRecentMessages() {
+        return recentMessages;
+    }
+
+    public void setRecentMessages(int recentMessages) {
+        this.recentMessages = recentMessages;
+    }
+
+    public int getRecentBytes() {
+        return recentBytes;
+    }
+
+    public void setRecentBytes(int recentBytes) {
+        this.recentBytes = recentBytes;
+    }
+
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    public void setMaxRooms(int maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    public long getRoomIdleTimeoutMillis() {
+        return roomIdleTimeoutMillis;
+    }
+
+    public void setRoomIdleTimeoutMillis(long roomIdleTimeoutMillis) {
+        this.roomIdleTimeoutMillis = roomIdleTimeoutMillis;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getMaxMessagesPerSecond() {
+        return maxMessagesPerSecond;
+    }
+
+    public void setMaxMessagesPerSecond(long maxMessagesPerSecond) {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public long getRoomHighWaterMark() {
+        return roomHighWaterMark;
+    }
+
+    public void setRoomHighWaterMark(long roomHighWaterMark) {
+        this.roomHighWaterMark = roomHighWaterMark;
+    }
+
+    public boolean isRelay() {
+        return relay;
+    }
+
+    public void setRelay(boolean relay) {
+        this.relay = relay;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * 从系统属性中读取配置，没有设置的使用默认值
+     * @return 配置
+     */
+    public static ChatServerConfig fromSystemProperties() {
+        ChatServerConfig config = new ChatServerConfig();
+        config.setWorkerCount(Integer.getInteger("chat.workers", config.getWorkerCount()));
+        config.setHighWaterMark(Integer.getInteger("chat.highWaterMark", config.getHighWaterMark()));
+        config.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(
+                System.getProperty("chat.slowConsumerPolicy", config.getSlowConsumerPolicy().name())));
+        config.setHistoryDir(System.getProperty("chat.historyDir"));
+        config.setDurability(Durability.valueOf(
+                System.getProperty("chat.durability", config.getDurability().name())));
+        config.setWalBatchBytes(Integer.getInteger("chat.walBatchBytes", config.getWalBatchBytes()));
+        config.setWalMaxDelayMillis(Long.getLong("chat.walMaxDelay", config.getWalMaxDelayMillis()));
+        config.setRecentMessages(Integer.getInteger("chat.recentMessages", config.getRecentMessages()));
+        config.setRecentBytes(Integer.getInteger("chat.recentBytes", config.getRecentBytes()));
+        config.setMaxRooms(Integer.getInteger("chat.maxRooms", config.getMaxRooms()));
+        config.setRoomIdleTimeoutMillis(Long.getLong("chat.roomIdleTimeout", config.getRoomIdleTimeoutMillis()));
+        config.setMetricsPort(Integer.getInteger("chat.metricsPort", config.getMetricsPort()));
+        config.setHeartbeatMillis(Long.getLong("chat.heartbeat", config.getHeartbeatMillis()));
+        config.setIdleTimeoutMillis(Long.getLong("chat.idleTimeout", config.getIdleTimeoutMillis()));
+        config.setMaxMessagesPerSecond(Long.getLong("chat.maxMessagesPerSecond", config.getMaxMessagesPerSecond()));
+        config.setMaxBytesPerSecond(Long.getLong("chat.maxBytesPerSecond", config.getMaxBytesPerSecond()));
+        config.setRoomHighWaterMark(Long.getLong("chat.roomHighWaterMark", config.getRoomHighWaterMark()));
+        config.setRelay(Boolean.parseBoolean(System.getProperty("chat.relay", String.valueOf(config.isRelay()))));
+        config.setAcceptBacklog(Integer.getInteger("chat.backlog", config.getAcceptBacklog()));
+        config.setReusePort(Boolean.parseBoolean(System.getProperty("chat.reusePort", String.valueOf(config.isReusePort()))));
+        String codecClass = System.getProperty("chat.codec");
+        if (codecClass != null) {
+            try {
+                config.setCodec((FrameCodec) Class.forName(codecClass).getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("无法创建编解码器：" + codecClass, e);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,467 @@
+package server;
+
+import buffer.BufferPool;
+import buffer.ReadSizeEstimator;
+import buffer.SharedBuffer;
+import history.Region;
+import logging.AsyncLogger;
+import ratelimit.TokenBucket;
+import session.SessionTable;
+import session.UserIndex;
+import timer.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 每个客户端连接的状态，作为SelectionKey的attachment
+ * 只由所属Reactor的线程访问，所以不需要加锁
+ */
+class Connection {
+
+    // 累积读缓冲区第一次借的大小和最小的大小，之后按最近读到的字节数调整
+    private static final int INBOUND_BUFFER = 1024;
+    private static final int MIN_INBOUND_BUFFER = 256;
+    // 暂停读取的原因，可以同时有多个，全部解除后才恢复读取
+    static final int PAUSE_RATE = 1;
+    static final int PAUSE_ROOM = 2;
+    private static final int PAUSES = PAUSE_RATE | PAUSE_ROOM;
+    // 这次空闲期间已经发过PING，和暂停的原因一起放在会话表的状态位中
+    private static final int PINGED = 4;
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    // 所属的Reactor
+    private final Reactor reactor;
+    private final RoomRegistry rooms;
+    private final UserIndex<Connection> users;
+    // 当前所在的房间，同一时间只在一个房间中
+    private Room room;
+    // 客户端名称，转发消息时作为发送者，只编码一次，登录后改为用户ID
+    private String name;
+    private byte[] nameBytes;
+    // 登录的用户ID，没有登录时为null
+    private String userId;
+    // 待发送的消息队列，等OP_WRITE触发时才真正写入
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    // 和outbound一一对应，消息写完后释放对共享buffer的引用
+    private final Deque<SharedBuffer> owners = new ArrayDeque<>();
+    private final int highWaterMark;
+    private final SlowConsumerPolicy policy;
+    // 因为慢消费被丢弃的消息数量
+    private long dropped;
+    private final BufferPool pool;
+    private final ServerMetrics metrics;
+    // 累积读缓冲区(写模式)，保存还没有凑成完整帧的字节，从缓冲区池借出
+    // 只在有数据可读时借，读到的帧都处理完后就归还，空闲的连接为null
+    private ByteBuffer inbound;
+    // 决定下一次借多大的累积读缓冲区
+    private final ReadSizeEstimator readSize;
+    // 累积读缓冲区的上限：一个最大的帧编码后的长度
+    private final int maxInbound;
+    // 所属Reactor的会话表，状态位、最后读的时间和待发送字节数放在表中，不放在对象里
+    // 最后读的时间每次读只更新一次，不操作时间轮
+    private final SessionTable<Connection> sessions;
+    // 在会话表中的ID，断开后会被新连接复用
+    private final int id;
+    // 时间轮中的空闲检查，每个连接同一时间只有一个
+    private TimingWheel.Timeout idleCheck;
+    // 每秒消息数和字节数的令牌桶，不限制时为null
+    private final TokenBucket messageBucket;
+    private final TokenBucket byteBucket;
+
+    Connection(SelectionKey key, ChatServerConfig config, String name, Reactor reactor,
+               RoomRegistry rooms, UserIndex<Connection> users) {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.reactor = reactor;
+        this.rooms = rooms;
+        this.users = users;
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.highWaterMark = config.getHighWaterMark();
+        this.policy = config.getSlowConsumerPolicy();
+        this.maxInbound = config.getCodec().maxEncodedLength();
+        this.pool = config.getBufferPool();
+        this.metrics = reactor.getMetrics();
+        this.readSize = new ReadSizeEstimator(MIN_INBOUND_BUFFER, INBOUND_BUFFER,
+                Math.min(pool.maxPooledSize(), maxInbound));
+        long now = System.nanoTime();
+        this.messageBucket = config.getMaxMessagesPerSecond() <= 0 ? null
+                : new TokenBucket(config.getMaxMessagesPerSecond(), 2 * config.getMaxMessagesPerSecond(), now);
+        this.byteBucket = config.getMaxBytesPerSecond() <= 0 ? null
+                : new TokenBucket(config.getMaxBytesPerSecond(), 2 * config.getMaxBytesPerSecond(), now);
+        this.sessions = reactor.getSessions();
+        this.id = sessions.add(this);
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Reactor getReactor() {
+        return reactor;
+    }
+
+    int getReactorIndex() {
+        return reactor.getIndex();
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    /**
+     * 换房间时把待发送的字节数从原来的房间转到新房间
+     */
+    void setRoom(Room room) {
+        int queued = getQueuedBytes();
+        if (this.room != null) {
+            this.room.addQueuedBytes(-queued);
+        }
+        this.room = room;
+        if (room != null) {
+            room.addQueuedBytes(queued);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    byte[] getNameBytes() {
+        return nameBytes;
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    /**
+     * 登录成功后用用户ID作为名称
+     */
+    void setUserId(String userId) {
+        this.userId = userId;
+        this.name = userId;
+        this.nameBytes = userId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 队列中还没有写出的字节数
+     */
+    int getQueuedBytes() {
+        return sessions.getQueuedBytes(id);
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    long getLastReadNanos() {
+        return sessions.getLastSeen(id);
+    }
+
+    boolean isPinged() {
+        return (sessions.getState(id) & PINGED) != 0;
+    }
+
+    void setPinged() {
+        sessions.setState(id, sessions.getState(id) | PINGED);
+    }
+
+    void setIdleCheck(TimingWheel.Timeout idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    /**
+     * 读取之后按字节数计费，数据已经读进来了，超出的部分预支
+     * @return 需要暂停读取多少纳秒来偿还预支的令牌，0表示没有超出
+     */
+    long chargeBytes(long bytes, long now) {
+        return byteBucket == null || bytes == 0 ? 0 : byteBucket.consume(bytes, now);
+    }
+
+    /**
+     * @return 令牌桶现在允许处理的消息数
+     */
+    int allowedMessages(long now) {
+        return messageBucket == null ? Integer.MAX_VALUE
+                : (int) Math.min(messageBucket.available(now), Integer.MAX_VALUE);
+    }
+
+    void chargeMessages(int messages, long now) {
+        if (messageBucket != null && messages > 0) {
+            messageBucket.consume(messages, now);
+        }
+    }
+
+    /**
+     * @return 到下一条消息的令牌补充上还需要的纳秒数
+     */
+    long nanosUntilNextMessage() {
+        return messageBucket == null ? 0 : messageBucket.nanosUntilAvailable(1);
+    }
+
+    boolean isReadPaused(int reason) {
+        return (sessions.getState(id) & reason) != 0;
+    }
+
+    /**
+     * 取消OP_READ监听，数据留在内核的接收缓冲区，满了之后TCP窗口变为0，发送方被迫停下
+     * @param reason PAUSE_RATE或PAUSE_ROOM
+     */
+    void pauseRead(int reason) {
+        int state = sessions.getState(id);
+        if ((state & PAUSES) == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        sessions.setState(id, state | reason);
+    }
+
+    /**
+     * 解除一个暂停的原因，全部解除后恢复OP_READ监听
+     */
+    void resumeRead(int reason) {
+        int state = sessions.getState(id);
+        if ((state & PAUSES) == 0) {
+            return;
+        }
+        state &= ~reason;
+        sessions.setState(id, state);
+        if ((state & PAUSES) == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 收到数据，连接是活的
+     * @param now Reactor本次循环的时间
+     */
+    void touch(long now) {
+        sessions.setLastSeen(id, now);
+        sessions.setState(id, sessions.getState(id) & ~PINGED);
+    }
+
+    /**
+     * @return 累积读缓冲区，没有借出时为null
+     */
+    ByteBuffer getInbound() {
+        return inbound;
+    }
+
+    /**
+     * 有数据可读时调用，还没有累积读缓冲区时按最近读到的字节数向缓冲区池借一个
+     */
+    ByteBuffer borrowInbound() {
+        if (inbound == null) {
+            inbound = pool.acquire(readSize.next());
+        }
+        return inbound;
+    }
+
+    /**
+     * 记录一次READ事件读到的字节数，调整下一次借的大小
+     * @param capacity 读之前累积读缓冲区的可写空间
+     */
+    void recordRead(long bytes, int capacity) {
+        readSize.record((int) Math.min(bytes, Integer.MAX_VALUE), capacity);
+    }
+
+    /**
+     * 累积读缓冲区中没有剩下半个帧或者被限流的帧时归还给缓冲区池
+     */
+    void releaseInboundIfEmpty() {
+        if (inbound != null && inbound.position() == 0) {
+            pool.release(inbound);
+            inbound = null;
+        }
+    }
+
+    /**
+     * 累积读缓冲区满了但帧还不完整时扩容
+     * @return 扩容后的缓冲区，已经到上限时返回原缓冲区
+     */
+    ByteBuffer expandInbound() {
+        if (inbound.capacity() >= maxInbound) {
+            return inbound;
+        }
+        inbound = pool.expand(inbound, Math.min(inbound.capacity() * 2, maxInbound));
+        return inbound;
+    }
+
+    /**
+     * 把不属于缓冲区池的消息放入待发送队列
+     * @param buffer 读模式的消息
+     * @return 是否成功入队
+     */
+    boolean enqueue(ByteBuffer buffer) {
+        SharedBuffer message = SharedBuffer.unpooled(buffer);
+        boolean queued = enqueue(message);
+        message.release();
+        return queued;
+    }
+
+    /**
+     * 把共享的消息放入待发送队列，并开启OP_WRITE监听
+     * 队列中保存的是只读视图，发送完成后才释放引用
+     * 超过高水位时按照策略丢弃消息或断开连接
+     * @param message 编码好的帧
+     * @return 是否成功入队
+     */
+    boolean enqueue(SharedBuffer message) {
+        if (!key.isValid()) {
+            return false;
+        }
+        int size = message.readableBytes();
+        if (getQueuedBytes() + size > highWaterMark) {
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                // 调用者可能正在遍历房间成员，所以不立即离开房间，交给Reactor稍后关闭
+                key.cancel();
+                reactor.execute(this::close);
+                metrics.slowConsumers.increment();
+            } else {
+                dropped++;
+                metrics.dropped.increment();
+            }
+            return false;
+        }
+        append(message);
+        return true;
+    }
+
+    private void append(SharedBuffer message) {
+        boolean wasEmpty = outbound.isEmpty();
+        outbound.addLast(message.retainedView());
+        owners.addLast(message);
+        sessions.addQueuedBytes(id, message.readableBytes());
+        metrics.queuedBytes.add(message.readableBytes());
+        if (room != null) {
+            room.addQueuedBytes(message.readableBytes());
+        }
+        metrics.messagesOut.increment();
+        if (wasEmpty) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 放入客户端自己请求的数据，比如加入房间时的最近消息，不受高水位限制
+     * @param message 编码好的帧
+     */
+    void enqueueRequested(SharedBuffer message) {
+        if (key.isValid()) {
+            append(message);
+        }
+    }
+
+    /**
+     * 发送历史消息
+     * 队列为空时直接从日志文件transferTo到socket，不经过用户态(零拷贝)；
+     * 发不完的部分以及队列不为空时，以映射内存的只读切片按顺序入队
+     * 历史消息是客户端自己请求的，不受高水位限制
+     * @param regions 日志中连续的消息
+     */
+    void sendHistory(List<Region> regions) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        for (Region region : regions) {
+            if (outbound.isEmpty()) {
+                long written;
+                while (region.remaining() > 0 && (written = region.transferTo(channel)) > 0) {
+                    // socket发送缓冲区还有空间就继续写
+                    metrics.bytesOut.add(written);
+                }
+            }
+            if (region.remaining() > 0) {
+                SharedBuffer message = SharedBuffer.unpooled(region.slice());
+                append(message);
+                message.release();
+            }
+        }
+    }
+
+    /**
+     * OP_WRITE触发时调用，尽量多写，写不完就等下一次OP_WRITE
+     * @param scratch Reactor共用的数组，用来做gathering write
+     */
+    void flush(ByteBuffer[] scratch) throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : outbound) {
+                if (count == scratch.length) {
+                    break;
+                }
+                scratch[count++] = buffer;
+            }
+            long written = channel.write(scratch, 0, count);
+            sessions.addQueuedBytes(id, (int) -written);
+            metrics.queuedBytes.add(-written);
+            if (room != null) {
+                room.addQueuedBytes(-written);
+            }
+            metrics.bytesOut.add(written);
+            while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                outbound.pollFirst();
+                owners.pollFirst().release();
+            }
+            Arrays.fill(scratch, 0, count, null);
+            if (written == 0) {
+                // socket发送缓冲区已满，等下一次OP_WRITE
+                return;
+            }
+        }
+        // 全部写完，取消OP_WRITE监听，否则会一直触发
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 关闭连接，并归还所有借用的buffer，可以重复调用
+     */
+    void close() {
+        if (channel.isOpen()) {
+            metrics.connections.decrement();
+        }
+        rooms.leave(this);
+        users.logout(userId, this);
+        if (idleCheck != null) {
+            idleCheck.cancel();
+            idleCheck = null;
+        }
+        key.cancel();
+        outbound.clear();
+        SharedBuffer owner;
+        while ((owner = owners.pollFirst()) != null) {
+            owner.release();
+        }
+        if (inbound != null) {
+            pool.release(inbound);
+            inbound = null;
+        }
+        if (sessions.get(id) == this) {
+            metrics.queuedBytes.add(-getQueuedBytes());
+            // 清空这个连接的字段，ID留给之后的新连接
+            sessions.remove(id, this);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            AsyncLogger.getDefault().error(getName() + "关闭连接出错", e);
+        }
+    }
+}
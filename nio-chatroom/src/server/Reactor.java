@@ -0,0 +1,758 @@
+package server;
+
+import buffer.BufferPool;
+import buffer.SharedBuffer;
+import codec.Frame;
+import codec.FrameCodec;
+import codec.FrameType;
+import codec.Messages;
+import history.HistoryStore;
+import history.RecentHistory;
+import history.SeqMismatchException;
+import history.WriteAheadLog;
+import logging.AsyncLogger;
+import logging.Level;
+import session.IdlePolicy;
+import session.SessionTable;
+import session.UserIndex;
+import timer.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个Reactor = 一个Selector + 一个线程
+ * boss reactor只负责accept，worker reactor负责已连接客户端的读写
+ * 其他线程不能直接操作本Reactor的Selector，只能通过execute投递任务，
+ * 由本线程在select返回后依次执行(无锁队列 + wakeup)
+ */
+class Reactor implements Runnable {
+
+    // 一次gathering write最多合并的消息数
+    private static final int MAX_GATHER = 64;
+    // 以/开头的消息是命令，比如 /join 房间名，只比较第一个字节
+    private static final byte[] COMMAND_PREFIX = {'/'};
+    // /history不带参数时返回的消息数量，以及最多返回的数量
+    private static final int DEFAULT_HISTORY = 20;
+    private static final int MAX_HISTORY = 1000;
+    // 时间轮每个tick的长度和桶数，一圈约51秒，空闲检查最多晚一个tick
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 512;
+    // 一次ACCEPT事件最多accept的连接数，没accept完的下一次select还会就绪，不会让一个Reactor只顾着accept
+    private static final int MAX_ACCEPTS = 1024;
+    // 会话表的初始容量，不够时翻倍
+    private static final int INITIAL_SESSIONS = 1024;
+
+    private final ChatServer chatServer;
+    private final Selector selector;
+    // 其他线程投递过来的任务：注册新连接、跨Reactor转发消息
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 避免每次投递任务都调用wakeup
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    // 每个Reactor独占，不需要加锁
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final List<Frame> frames = new ArrayList<>();
+    // CharsetEncoder不是线程安全的，每个Reactor一个
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ChatServerConfig config;
+    private final ServerMetrics metrics;
+    // 事件循环中不能直接写控制台，日志由后台线程批量写出
+    private final AsyncLogger logger = AsyncLogger.getDefault();
+    private final FrameCodec codec;
+    private final BufferPool pool;
+    private final String name;
+    // 在ChatServer.workers中的序号，也是房间成员分组的下标
+    private final int index;
+    // 空闲检查和心跳的时间轮，只在本线程中访问
+    private final TimingWheel wheel;
+    // 注册在本Reactor上的连接，按连接ID保存，只在本线程中访问
+    private final SessionTable<Connection> sessions = new SessionTable<>(INITIAL_SESSIONS);
+    // 什么时候发PING、什么时候断开空闲的连接
+    private final IdlePolicy idlePolicy;
+    private final long roomHighWaterMark;
+    // 本次select返回的时间，连接收到数据时直接用它，不需要每次读都调用System.nanoTime
+    private long now;
+
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    Reactor(ChatServer chatServer, ChatServerConfig config, String name, int index) throws IOException {
+        this.chatServer = chatServer;
+        this.config = config;
+        this.metrics = chatServer.getMetrics();
+        this.codec = config.getCodec();
+        this.pool = config.getBufferPool();
+        this.name = name;
+        this.index = index;
+        this.selector = Selector.open();
+        this.idlePolicy = new IdlePolicy(TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis()),
+                TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis()));
+        this.roomHighWaterMark = config.getRoomHighWaterMark();
+        this.now = System.nanoTime();
+        this.wheel = new TimingWheel(TICK_NANOS, WHEEL_SIZE, now);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    SessionTable<Connection> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return 任务队列的长度，遍历整个队列，只用于监控
+     */
+    int getPendingTasks() {
+        return tasks.size();
+    }
+
+    /**
+     * 当前线程是否就是本Reactor的事件循环线程
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 注册ServerSocketChannel，默认只有boss reactor会调用，SO_REUSEPORT模式下每个worker一个
+     * worker可能已经阻塞在select上，所以和新连接一样在本线程中完成注册
+     */
+    void register(ServerSocketChannel server) {
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                logger.error("[" + name + "]注册监听端口失败", e);
+            }
+        });
+    }
+
+    /**
+     * 注册新连接，可以由boss线程调用，真正的注册在本线程中完成
+     */
+    void register(SocketChannel client) {
+        execute(() -> {
+            try {
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(key, config, chatServer.getClientName(client),
+                        this, chatServer.getRooms(), chatServer.getUsers());
+                key.attach(connection);
+                connection.touch(now);
+                scheduleIdleCheck(connection);
+                metrics.accepted.increment();
+                metrics.connections.increment();
+                // 新连接默认进入大厅
+                join(connection, RoomRegistry.LOBBY);
+                logger.info(connection.getName() + "已连接到服务器[" + name + "]");
+            } catch (IOException e) {
+                logger.error("[" + name + "]注册新连接失败", e);
+            }
+        });
+    }
+
+    /**
+     * 投递任务，线程安全
+     * @param task 在本Reactor线程中执行的任务
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 在时间轮中安排一个任务，必须在本线程中调用，其他线程通过execute转交
+     */
+    void schedule(Runnable task, long delayNanos) {
+        wheel.schedule(task, delayNanos);
+    }
+
+    void shutdown() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!closed) {
+                // 时间轮中有任务时最多等到下一个tick，没有任务时一直等
+                selector.select(wheel.size() == 0 ? 0
+                        : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wheel.nanosUntilNextTick(System.nanoTime()))));
+                wakenUp.set(false);
+                long start = System.nanoTime();
+                now = start;
+                // 先推进时间轮，之后注册的连接从当前tick开始计时
+                wheel.advance(now);
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey selectionKey : selectionKeys) {
+                    try {
+                        handles(selectionKey);
+                    } catch (IOException e) {
+                        // 单个连接异常不影响其他连接
+                        logger.error("[" + name + "]处理连接出错", e);
+                        if (selectionKey.attachment() instanceof Connection) {
+                            ((Connection) selectionKey.attachment()).close();
+                        } else {
+                            selectionKey.cancel();
+                            chatServer.close(selectionKey.channel());
+                        }
+                    } catch (CancelledKeyException e) {
+                        // 连接在处理过程中被关闭(比如慢客户端被断开)
+                    } catch (RuntimeException e) {
+                        // 客户端的非法输入触发的bug只断开这个连接，不能让整个Reactor线程退出
+                        logger.error("[" + name + "]处理连接出错", e);
+                        if (selectionKey.attachment() instanceof Connection) {
+                            ((Connection) selectionKey.attachment()).close();
+                        }
+                    }
+                }
+                selectionKeys.clear();
+                runTasks();
+                metrics.loop.record(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            logger.error("[" + name + "]事件循环出错，已退出", e);
+        } catch (ClosedSelectorException e) {
+            // 服务器关闭
+        } finally {
+            // 关闭selector，同时也会关闭所有被注册的channel
+            chatServer.close(selector);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("[" + name + "]执行任务出错", e);
+            }
+        }
+    }
+
+    /**
+     * 处理状态分为：accept(ServerSocketChannel), read/write(SocketChannel)
+     * @param selectionKey 状态
+     */
+    private void handles(SelectionKey selectionKey) throws IOException {
+        // WRITE事件——socket发送缓冲区有空间了，继续发送待发送队列
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            Connection connection = (Connection) selectionKey.attachment();
+            connection.flush(gather);
+        }
+        // ACCEPT事件——和客户端建立连接，交给下一个worker，SO_REUSEPORT模式下留给自己
+        // 重连风暴时一次事件把已经排队的连接都accept出来，注册任务在本轮select的最后统一执行
+        if (selectionKey.isAcceptable()) {
+            ServerSocketChannel serverChannel = (ServerSocketChannel) selectionKey.channel();
+            SocketChannel client;
+            int accepted = 0;
+            while (accepted < MAX_ACCEPTS && (client = serverChannel.accept()) != null) {
+                client.configureBlocking(false);
+                (chatServer.isReusePort() ? this : chatServer.nextWorker()).register(client);
+                accepted++;
+            }
+        }
+        // READ事件——客户端向服务器端发送消息
+        else if (selectionKey.isValid() && selectionKey.isReadable()) {
+            Connection connection = (Connection) selectionKey.attachment();
+            boolean open = receive(connection);
+            connection.touch(now);
+            process(connection, open);
+        }
+    }
+
+    /**
+     * 解码累积缓冲区中令牌桶允许的帧并处理，超出的完整帧留在缓冲区中，暂停读取直到令牌补充上
+     * 一次READ事件可能解码出0个或多个帧
+     * @param connection 客户端连接
+     * @param open 连接是否仍然打开
+     */
+    private void process(Connection connection, boolean open) throws IOException {
+        ByteBuffer inbound = connection.getInbound();
+        boolean limited = false;
+        // frames是本Reactor共用的，解码或者处理中抛出异常时也要清空，否则会被当成下一个连接的输入
+        try {
+            if (inbound != null) {
+                int allowed = connection.allowedMessages(now);
+                // 将Buffer的写模式转换成读模式，解码后把剩下的字节移到开头
+                inbound.flip();
+                codec.decode(inbound, frames, allowed);
+                limited = frames.size() == allowed && inbound.hasRemaining();
+                inbound.compact();
+                // 帧都已经复制出来了，没有剩下的字节时归还累积读缓冲区，空闲的连接不占用读缓冲区
+                connection.releaseInboundIfEmpty();
+            }
+            connection.chargeMessages(frames.size(), now);
+            metrics.messagesIn.add(frames.size());
+            for (Frame frame : frames) {
+                if (frame.getType() == FrameType.PING) {
+                    connection.enqueue(Messages.pong(codec));
+                    continue;
+                }
+                if (frame.getType() == FrameType.PONG) {
+                    // 收到数据时已经更新了最后读的时间
+                    continue;
+                }
+                if (frame.getType() == FrameType.ACK) {
+                    ack(connection, Messages.room(frame), Messages.seq(frame));
+                    continue;
+                }
+                if (frame.getType() == FrameType.RESUME) {
+                    resume(connection, Messages.room(frame), Messages.seq(frame));
+                    continue;
+                }
+                if (frame.startsWith(COMMAND_PREFIX)) {
+                    // 命令不转发
+                    handleCommand(connection, frame.text());
+                    continue;
+                }
+                if (logger.sampled(Level.INFO)) {
+                    logger.info(connection.getName() + "@" + connection.getRoom().getId() + ":" + frame.text());
+                }
+                // 中继模式下正文原样放进MESSAGE帧，转发路径上没有String；否则解码再编码，替换掉非法的UTF-8
+                ByteBuffer text = config.isRelay() ? frame.getPayload() : StandardCharsets.UTF_8.encode(frame.text());
+                // 只编码一次，转发给同一房间的其他客户端
+                publish(connection, text);
+
+                // 检查用户是否退出
+                if (chatServer.readyToQuit(frame)) {
+                    open = false;
+                    break;
+                }
+            }
+            if (open && !frames.isEmpty()) {
+                checkRoomBackpressure(connection);
+            }
+        } finally {
+            frames.clear();
+        }
+        if (!open) {
+            // 客户端退出或者异常断开，停止监听
+            connection.close();
+            logger.info(connection.getName() + "已断开");
+        } else if (limited) {
+            pauseForRate(connection, Math.max(1, connection.nanosUntilNextMessage()));
+        }
+    }
+
+    /**
+     * 从客户端读取字节放入累积缓冲区，按读到的字节数计费
+     * 累积读缓冲区在这时才借出，大小按这个连接最近读到的字节数调整
+     * @param connection 客户端连接
+     * @return 连接是否仍然打开
+     */
+    private boolean receive(Connection connection) throws IOException {
+        SocketChannel client = connection.getChannel();
+        ByteBuffer inbound = connection.borrowInbound();
+        int capacity = inbound.remaining();
+        int count;
+        long total = 0;
+        while ((count = client.read(inbound)) > 0) {
+            total += count;
+            metrics.bytesIn.add(count);
+            if (!inbound.hasRemaining()) {
+                ByteBuffer expanded = connection.expandInbound();
+                if (expanded == inbound) {
+                    // 已经到达上限，先解码腾出空间
+                    break;
+                }
+                inbound = expanded;
+            }
+        }
+        connection.recordRead(total, capacity);
+        long delay = connection.chargeBytes(total, now);
+        if (delay > 0) {
+            pauseForRate(connection, delay);
+        }
+        return count >= 0;
+    }
+
+    /**
+     * 超过每秒消息数或字节数的限制，暂停读取直到令牌补充上
+     * 暂停期间数据留在内核中，不占用服务器的内存，也不会被转发
+     */
+    private void pauseForRate(Connection connection, long delay) {
+        if (!connection.isReadPaused(Connection.PAUSE_RATE)) {
+            connection.pauseRead(Connection.PAUSE_RATE);
+            metrics.throttled.increment();
+            wheel.schedule(() -> resumeAfterRate(connection), delay);
+        }
+    }
+
+    /**
+     * 恢复读取，累积缓冲区中留下的完整帧不会再触发OP_READ，所以先处理它们
+     */
+    private void resumeAfterRate(Connection connection) {
+        if (!connection.getKey().isValid()) {
+            return;
+        }
+        connection.resumeRead(Connection.PAUSE_RATE);
+        try {
+            process(connection, true);
+        } catch (IOException | RuntimeException e) {
+            // 在时间轮中执行，不在run的按连接捕获范围内
+            logger.error(connection.getName() + "恢复读取时出错", e);
+            connection.close();
+        }
+    }
+
+    /**
+     * 发送者所在房间的待发送队列太长时暂停读取这个发送者，每个tick检查一次，
+     * 降到高水位的一半以下或者换了房间时恢复，这样转发不会比接收者消费得快
+     */
+    private void checkRoomBackpressure(Connection connection) {
+        Room room = connection.getRoom();
+        if (roomHighWaterMark > 0 && room != null && !connection.isReadPaused(Connection.PAUSE_ROOM)
+                && room.getQueuedBytes() > roomHighWaterMark) {
+            connection.pauseRead(Connection.PAUSE_ROOM);
+            metrics.roomBackpressure.increment();
+            wheel.schedule(() -> recheckRoom(connection, room), TICK_NANOS);
+        }
+    }
+
+    private void recheckRoom(Connection connection, Room room) {
+        if (!connection.getKey().isValid()) {
+            return;
+        }
+        if (connection.getRoom() != room || room.getQueuedBytes() <= roomHighWaterMark / 2) {
+            connection.resumeRead(Connection.PAUSE_ROOM);
+        } else {
+            wheel.schedule(() -> recheckRoom(connection, room), TICK_NANOS);
+        }
+    }
+
+    /**
+     * 在时间轮中安排这个连接下一次空闲检查，在最早可能需要发PING或者断开的时间
+     * 连接收到数据时只更新最后读的时间，检查时发现没有空闲就按最后读的时间重新安排，
+     * 所以每次读是O(1)的，时间轮中每个连接只有一个任务
+     */
+    private void scheduleIdleCheck(Connection connection) {
+        long deadline = idlePolicy.nextCheck(connection.getLastReadNanos(), connection.isPinged(), now);
+        if (deadline == Long.MAX_VALUE) {
+            // 没有开启心跳和空闲断开
+            return;
+        }
+        connection.setIdleCheck(wheel.schedule(() -> checkIdle(connection), deadline - now));
+    }
+
+    /**
+     * 时间轮到期：空闲超过idleTimeout时断开，超过心跳间隔时发送一次PING
+     */
+    private void checkIdle(Connection connection) {
+        if (!connection.getKey().isValid()) {
+            return;
+        }
+        IdlePolicy.Action action = idlePolicy.check(connection.getLastReadNanos(), connection.isPinged(), now);
+        if (action == IdlePolicy.Action.CLOSE) {
+            connection.close();
+            logger.info(connection.getName() + "空闲超时，已断开");
+            return;
+        }
+        if (action == IdlePolicy.Action.PING) {
+            connection.enqueue(Messages.ping(codec));
+            connection.setPinged();
+        }
+        scheduleIdleCheck(connection);
+    }
+
+    /**
+     * 处理命令：
+     *  /join 房间名 —— 离开当前房间，加入新房间
+     *  /leave —— 回到大厅
+     *  /login 用户ID —— 登录，之后别人可以通过用户ID私聊
+     *  /msg 用户ID 消息 —— 私聊
+     *  /history [条数] —— 当前房间最近的历史消息
+     * @param connection 发出命令的客户端
+     * @param command 命令
+     */
+    private void handleCommand(Connection connection, String command) throws IOException {
+        String[] parts = command.trim().split("\\s+", 2);
+        switch (parts[0]) {
+            case "/login":
+                login(connection, parts.length < 2 ? null : parts[1]);
+                break;
+            case "/msg":
+                String[] args = parts.length < 2 ? new String[0] : parts[1].split("\\s+", 2);
+                if (args.length < 2) {
+                    reply(connection, "用法：/msg 用户ID 消息");
+                } else {
+                    sendPrivate(connection, args[0], args[1]);
+                }
+                break;
+            case "/join":
+                if (parts.length < 2) {
+                    reply(connection, "用法：/join 房间名");
+                } else {
+                    reply(connection, "已加入房间" + parts[1]);
+                    join(connection, parts[1]);
+                }
+                break;
+            case "/history":
+                sendHistory(connection, parts.length < 2 ? String.valueOf(DEFAULT_HISTORY) : parts[1]);
+                break;
+            case "/leave":
+                reply(connection, "已回到" + RoomRegistry.LOBBY);
+                join(connection, RoomRegistry.LOBBY);
+                break;
+            default:
+                reply(connection, "未知命令：" + parts[0]);
+        }
+    }
+
+    /**
+     * 加入房间，并把房间最近的消息发给这个客户端
+     * 最近的消息已经是编码好的帧，只需要复制一次，随后和其他消息一起gathering write
+     * 只加入不发消息不会创建RoomLog，不会占用日志文件和最近消息的内存
+     */
+    private void join(Connection connection, String roomId) {
+        chatServer.getRooms().join(connection, roomId);
+        RoomLog roomLog = chatServer.peekRoomLog(roomId);
+        RecentHistory recent = roomLog == null ? null : roomLog.getRecent();
+        sendBacklog(connection, recent == null ? null : recent.copy(pool));
+    }
+
+    /**
+     * 断线重连：加入房间，只补发序号seq之后的消息
+     * 先从内存中的最近消息补，补不全时从历史日志补，都没有时只能发还保留的最近消息
+     * 先回复一个RESUME帧告诉客户端实际从哪个序号继续，
+     * 补发和实时转发之间可能有重复的消息，客户端按序号去重
+     * @param seq 客户端收到的最后一条消息的序号，登录用户取和服务器记录的确认序号中较大的一个
+     */
+    private void resume(Connection connection, String roomId, long seq) throws IOException {
+        if (connection.getUserId() != null) {
+            seq = Math.max(seq, chatServer.getCursor(connection.getUserId(), roomId));
+        }
+        chatServer.getRooms().join(connection, roomId);
+        RoomLog roomLog = chatServer.getRoomLog(roomId);
+        if (roomLog == null) {
+            // 房间太多，这个房间没有序号也没有历史，只能从头开始
+            connection.enqueue(Messages.resume(codec, 0, roomId));
+            reply(connection, "房间数量已达上限，不能在房间" + roomId + "中发消息");
+            return;
+        }
+        if (seq >= roomLog.getNextSeq()) {
+            // 客户端的序号比服务器的还大，说明服务器重启过并且没有保存历史，序号重新开始了
+            seq = 0;
+        }
+        connection.enqueue(Messages.resume(codec, seq, roomId));
+        RecentHistory recent = roomLog.getRecent();
+        ByteBuffer gap = recent == null ? null : recent.copySince(seq, pool);
+        if (gap != null) {
+            if (gap.hasRemaining()) {
+                sendBacklog(connection, gap);
+            }
+        } else if (roomLog.getLog() != null) {
+            connection.sendHistory(roomLog.getLog().readSince(seq + 1, MAX_HISTORY));
+        } else if (recent != null) {
+            sendBacklog(connection, recent.copy(pool));
+        }
+    }
+
+    /**
+     * 把从缓冲区池借出的一段编码好的消息放入待发送队列，随后和其他消息一起gathering write
+     */
+    private void sendBacklog(Connection connection, ByteBuffer backlog) {
+        if (backlog != null) {
+            SharedBuffer message = new SharedBuffer(pool, backlog);
+            connection.enqueueRequested(message);
+            message.release();
+        }
+    }
+
+    /**
+     * 客户端定期确认收到的消息，登录用户的确认序号记录下来，换一个客户端重连也能接着收
+     */
+    private void ack(Connection connection, String roomId, long seq) {
+        if (connection.getUserId() != null) {
+            chatServer.ack(connection.getUserId(), roomId, seq);
+        }
+    }
+
+    /**
+     * 给消息分配房间中的序号，保存并转发
+     * 分配序号、编码、写入日志和转发都在房间锁中，日志中的顺序和各个Reactor转发的顺序就是序号的顺序；
+     * 没有预写日志时写入日志后立即转发；
+     * 有预写日志时交给写线程，持久化之后在写线程的回调中按序号的顺序转发，再回到本Reactor的线程给发送者回ACK；
+     * 写日志失败的消息不转发，序号还回去，日志中的序号和转发的序号始终一致
+     */
+    private void publish(Connection sender, ByteBuffer text) throws IOException {
+        Room room = sender.getRoom();
+        RoomLog roomLog = chatServer.getRoomLog(room.getId());
+        if (roomLog == null) {
+            reply(sender, "房间数量已达上限，消息没有发送");
+            return;
+        }
+        WriteAheadLog wal = chatServer.getWal();
+        SharedBuffer message;
+        synchronized (roomLog) {
+            long seq = roomLog.assignSeq();
+            message = encodeMessage(sender, seq, roomLog.getIdBytes(), text);
+            if (wal != null) {
+                wal.submit(roomLog.getLog(), seq, message, (logSeq, error) -> {
+                    // 写线程按提交的顺序回调，所以最近消息也是按序号追加的
+                    if (error == null) {
+                        if (roomLog.getRecent() != null) {
+                            roomLog.getRecent().append(seq, message.duplicate());
+                        }
+                        chatServer.forwardMessage(sender, room, message);
+                    } else if (!(error instanceof SeqMismatchException)) {
+                        synchronized (roomLog) {
+                            roomLog.rollback(seq);
+                        }
+                    }
+                    execute(() -> {
+                        if (error == null) {
+                            sender.enqueue(Messages.ack(codec, seq));
+                        } else {
+                            // 没有ACK，回复中带上序号，发送者知道是哪一条消息没有发出去
+                            logger.error("房间" + room.getId() + "的消息" + seq + "写入预写日志失败", error);
+                            reply(sender, "消息" + seq + "保存失败，没有转发");
+                        }
+                        message.release();
+                    });
+                });
+                return;
+            }
+            try {
+                roomLog.append(seq, message);
+            } catch (IOException e) {
+                message.release();
+                logger.error("房间" + room.getId() + "的消息" + seq + "写入日志失败", e);
+                reply(sender, "消息保存失败，没有转发");
+                return;
+            }
+            chatServer.forwardMessage(sender, room, message);
+        }
+        message.release();
+    }
+
+    private void sendHistory(Connection connection, String count) throws IOException {
+        HistoryStore history = chatServer.getHistory();
+        if (history == null) {
+            reply(connection, "服务器没有开启历史消息");
+            return;
+        }
+        int n;
+        try {
+            n = Math.min(Integer.parseInt(count), MAX_HISTORY);
+        } catch (NumberFormatException e) {
+            n = -1;
+        }
+        if (n <= 0) {
+            reply(connection, "用法：/history [条数]");
+            return;
+        }
+        connection.sendHistory(history.log(connection.getRoom().getId()).readLast(n));
+    }
+
+    private void login(Connection connection, String userId) {
+        UserIndex<Connection> users = chatServer.getUsers();
+        if (!UserIndex.isValidUserId(userId)) {
+            reply(connection, "用法：/login 用户ID");
+        } else if (!users.login(userId, connection)) {
+            reply(connection, "用户ID" + userId + "已被占用");
+        } else {
+            // 换了用户ID，释放原来的
+            if (connection.getUserId() != null && !connection.getUserId().equals(userId)) {
+                users.logout(connection.getUserId(), connection);
+            }
+            connection.setUserId(userId);
+            reply(connection, "登录成功：" + userId);
+        }
+    }
+
+    /**
+     * 私聊：一次索引查找 + 一次入队，不需要遍历任何连接
+     * 接收者在其他Reactor上时，把消息的引用转交给那个Reactor的线程
+     */
+    private void sendPrivate(Connection sender, String userId, String text) {
+        Connection target = chatServer.getUsers().lookup(userId);
+        if (target == null) {
+            reply(sender, "用户" + userId + "不在线");
+            return;
+        }
+        ByteBuffer buffer = pool.acquire(Messages.maxLength(codec, null, sender.getNameBytes(), text, encoder));
+        Messages.encodePrivate(codec, sender.getNameBytes(), text, encoder, buffer);
+        SharedBuffer message = new SharedBuffer(pool, buffer);
+        Reactor reactor = target.getReactor();
+        if (reactor == this) {
+            target.enqueue(message);
+            message.release();
+        } else {
+            reactor.execute(() -> {
+                try {
+                    target.enqueue(message);
+                } finally {
+                    message.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * 给客户端发送一条系统通知
+     */
+    private void reply(Connection connection, String text) {
+        connection.enqueue(codec.encode(Frame.text(text)));
+    }
+
+    /**
+     * 把消息编码成MESSAGE帧，放到从缓冲区池借出的直接内存中
+     * @param sender 消息源客户端
+     * @param seq 房间中的序号
+     * @param room UTF-8编码的房间名
+     * @param text 读模式的UTF-8消息正文，原样复制
+     * @return 引用计数为1的共享buffer，调用者负责release
+     */
+    private SharedBuffer encodeMessage(Connection sender, long seq, byte[] room, ByteBuffer text) {
+        ByteBuffer buffer = pool.acquire(Messages.length(codec, room, sender.getNameBytes(), text.remaining()));
+        Messages.encode(codec, seq, room, sender.getNameBytes(), text, buffer);
+        return new SharedBuffer(pool, buffer);
+    }
+
+    /**
+     * 将消息转发给房间中注册在本Reactor上的其他客户端，必须在本线程中调用
+     * 只是把共享buffer的只读视图放入各个客户端的待发送队列，不会重新编码，也不会阻塞在慢客户端上
+     * @param sender 消息源客户端
+     * @param room 房间
+     * @param message 编码好的MESSAGE帧
+     */
+    void forwardLocal(Connection sender, Room room, SharedBuffer message) {
+        long start = System.nanoTime();
+        for (Connection connection : room.members(index)) {
+            if (connection != sender) {
+                if (!connection.enqueue(message) && !connection.getKey().isValid()) {
+                    logger.warn(connection.getName() + "接收过慢，已断开");
+                }
+            }
+        }
+        metrics.fanout.record(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天室房间
+ * 成员按所在的Reactor分组，每组只由对应Reactor的线程读写，不需要加锁
+ * 转发消息时只需要通知有成员的Reactor，每个Reactor只遍历自己的成员
+ * 所以一条消息的开销只和房间人数有关，和服务器总连接数无关
+ */
+class Room {
+
+    private final String id;
+    // members[i]只由第i个Reactor的线程访问
+    private final Set<Connection>[] members;
+    // 每组的人数，其他Reactor转发时用来判断是否需要通知该组
+    private final AtomicIntegerArray counts;
+    // 所有成员待发送队列中的字节数，各个Reactor并发更新，超过房间高水位时暂停读取发送者
+    private final LongAdder queuedBytes = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Room(String id, int reactorCount) {
+        this.id = id;
+        this.members = new Set[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            members[i] = new HashSet<>();
+        }
+        this.counts = new AtomicIntegerArray(reactorCount);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * 必须在connection所属Reactor的线程中调用
+     */
+    void add(Connection connection) {
+        int index = connection.getReactorIndex();
+        if (members[index].add(connection)) {
+            counts.incrementAndGet(index);
+        }
+    }
+
+    /**
+     * 必须在connection所属Reactor的线程中调用
+     */
+    void remove(Connection connection) {
+        int index = connection.getReactorIndex();
+        if (members[index].remove(connection)) {
+            counts.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * 第index个Reactor上的成员，只能在该Reactor的线程中访问
+     */
+    Set<Connection> members(int index) {
+        return members[index];
+    }
+
+    /**
+     * 第index个Reactor上的成员数量，任何线程都可以调用
+     */
+    int count(int index) {
+        return counts.get(index);
+    }
+
+    void addQueuedBytes(long bytes) {
+        queuedBytes.add(bytes);
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    boolean isEmpty() {
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import buffer.SharedBuffer;
+import history.MessageLog;
+import history.RecentHistory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 一个房间的消息序号、历史日志和最近消息，房间没人时也保留，直到空闲超时后被释放
+ * 序号在这个对象的锁中分配，并且在同一个锁中写入日志或者提交给预写日志，
+ * 所以日志和最近消息中的顺序就是序号的顺序
+ * 有历史日志时房间的序号就是日志中的序号：写入失败的消息不转发，它的序号还回去给下一条消息用，
+ * 按序号从日志补发时不会跳过消息，重启后从日志恢复的序号也不会和客户端已经确认过的重复
+ * 释放也在这个对象的锁中进行，已经释放的对象不能再使用，需要重新获取
+ */
+class RoomLog {
+
+    private final String id;
+    private final byte[] idBytes;
+    // 历史日志，没有开启时为null
+    private final MessageLog log;
+    // 最近的消息，没有开启时为null
+    private final RecentHistory recent;
+    // 下一条消息的序号，有历史日志时从日志恢复，所以重启后序号继续递增
+    private long nextSeq;
+    // 最后一次获取的时间(System.nanoTime)，调用者必须持有本对象的锁
+    private long lastUsed;
+    // 是否已经释放
+    private boolean released;
+
+    RoomLog(String id, MessageLog log, RecentHistory recent) {
+        this.id = id;
+        this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+        this.log = log;
+        this.recent = recent;
+        this.nextSeq = log != null ? log.nextSeq() : 1;
+    }
+
+    /**
+     * 分配下一个序号，调用者必须持有本对象的锁
+     */
+    long assignSeq() {
+        return nextSeq++;
+    }
+
+    /**
+     * 记录一次使用，调用者必须持有本对象的锁
+     * @return 是否还可以使用，已经释放时返回false
+     */
+    boolean touch(long now) {
+        lastUsed = now;
+        return !released;
+    }
+
+    /**
+     * 标记为已经释放，调用者必须持有本对象的锁
+     */
+    void markReleased() {
+        released = true;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * 预写日志写入失败后把序号还回去，调用者必须持有本对象的锁
+     * 只有日志中确实没有这个序号的消息时才还，force失败时消息已经在日志中了，序号不能再用；
+     * 排在失败的消息后面、已经分配了序号的消息会以SeqMismatchException失败，不要为它们调用
+     * @param seq 写入失败的消息的序号
+     */
+    void rollback(long seq) {
+        if (log.nextSeq() == seq && nextSeq > seq) {
+            nextSeq = seq;
+        }
+    }
+
+    /**
+     * 写入历史日志和最近消息，调用者必须持有本对象的锁
+     * @throws IOException 写日志失败，序号已经还回去，这条消息不能转发
+     */
+    void append(long seq, SharedBuffer message) throws IOException {
+        if (log != null) {
+            try {
+                log.append(message.duplicate(), seq);
+            } catch (IOException e) {
+                nextSeq = seq;
+                throw e;
+            }
+        }
+        if (recent != null) {
+            recent.append(seq, message.duplicate());
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    byte[] getIdBytes() {
+        return idBytes;
+    }
+
+    MessageLog getLog() {
+        return log;
+    }
+
+    RecentHistory getRecent() {
+        return recent;
+    }
+}
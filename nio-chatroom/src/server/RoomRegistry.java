@@ -0,0 +1,63 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 房间ID到房间的映射
+ * 加入和离开都通过ConcurrentHashMap的compute完成，和"空房间删除"是原子的，
+ * 不会出现有人加入了一个刚被删除的房间
+ */
+class RoomRegistry {
+
+    // 新连接默认进入的房间
+    static final String LOBBY = "lobby";
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int reactorCount;
+
+    RoomRegistry(int reactorCount) {
+        this.reactorCount = reactorCount;
+    }
+
+    /**
+     * 离开当前房间并加入新房间，必须在connection所属Reactor的线程中调用
+     * @param connection 客户端连接
+     * @param roomId 房间ID，不存在时自动创建
+     * @return 加入的房间
+     */
+    Room join(Connection connection, String roomId) {
+        leave(connection);
+        Room room = rooms.compute(roomId, (id, existing) -> {
+            Room r = existing != null ? existing : new Room(id, reactorCount);
+            r.add(connection);
+            return r;
+        });
+        connection.setRoom(room);
+        return room;
+    }
+
+    /**
+     * 离开当前房间，房间空了就删除，必须在connection所属Reactor的线程中调用
+     * @param connection 客户端连接
+     */
+    void leave(Connection connection) {
+        Room room = connection.getRoom();
+        if (room == null) {
+            return;
+        }
+        connection.setRoom(null);
+        rooms.computeIfPresent(room.getId(), (id, existing) -> {
+            existing.remove(connection);
+            return existing.isEmpty() ? null : existing;
+        });
+    }
+
+    Room get(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NIO聊天室服务器的所有指标，热点路径直接持有计数器和直方图的引用，不需要按名称查找
+ * 计数器和直方图都是无锁的，Reactor线程更新，HTTP线程抓取
+ */
+class ServerMetrics {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    final Counter accepted = registry.counter("chat_connections_accepted_total", "接受的连接数");
+    final Counter messagesIn = registry.counter("chat_messages_in_total", "从客户端收到的帧数");
+    final Counter messagesOut = registry.counter("chat_messages_out_total", "放入客户端待发送队列的帧数");
+    final Counter bytesIn = registry.counter("chat_bytes_in_total", "从客户端读取的字节数");
+    final Counter bytesOut = registry.counter("chat_bytes_out_total", "写给客户端的字节数");
+    final Counter dropped = registry.counter("chat_dropped_messages_total", "超过高水位被丢弃的消息数");
+    final Counter slowConsumers = registry.counter("chat_slow_consumer_disconnects_total",
+            "超过高水位被断开的连接数");
+    final Counter throttled = registry.counter("chat_read_throttled_total",
+            "超过每秒消息数或字节数限制被暂停读取的次数");
+    final Counter roomBackpressure = registry.counter("chat_room_backpressure_total",
+            "房间待发送的字节数超过高水位，发送者被暂停读取的次数");
+    final Histogram fanout = registry.histogram("chat_fanout_seconds",
+            "一个Reactor把一条消息放入本地房间成员队列的耗时");
+    final Histogram loop = registry.histogram("chat_reactor_loop_seconds",
+            "Reactor每次select返回后处理事件和任务的耗时，不包括等待");
+    // 当前的连接数和所有待发送队列中的字节数，可增可减
+    final LongAdder connections = new LongAdder();
+    final LongAdder queuedBytes = new LongAdder();
+
+    ServerMetrics(ChatServer chatServer) {
+        registry.gauge("chat_connections", "当前的连接数", connections::sum);
+        registry.gauge("chat_outbound_queued_bytes", "所有连接待发送队列中的字节数", queuedBytes::sum);
+        registry.gauge("chat_reactor_pending_tasks", "投递给Reactor还没有执行的任务数", chatServer::getPendingTasks);
+        registry.gauge("chat_users_logged_in", "登录的用户数", () -> chatServer.getUsers().size());
+        registry.gauge("chat_buffer_pool_outstanding", "从缓冲区池借出还没有归还的buffer数",
+                () -> chatServer.getConfig().getBufferPool().getOutstanding());
+        registry.counter("chat_wal_appended_total", "预写日志持久化的消息数",
+                () -> chatServer.getWal() == null ? 0 : chatServer.getWal().getAppended());
+        registry.counter("chat_wal_batches_total", "预写日志提交的批数",
+                () -> chatServer.getWal() == null ? 0 : chatServer.getWal().getBatches());
+    }
+
+    MetricsRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * 客户端待发送队列超过高水位时的处理策略
+ */
+public enum SlowConsumerPolicy {
+    // 丢弃新消息，保留连接
+    DROP,
+    // 断开慢客户端
+    DISCONNECT
+}
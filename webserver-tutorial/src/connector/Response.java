@@ -1,8 +1,14 @@
 package connector;
 
+import buffer.BufferPool;
+
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Locale;
 
 /*
@@ -57,12 +63,22 @@ public class Response implements ServletResponse {
     try (FileInputStream fis = new FileInputStream(resource)) {
       // 先发送消息头部
       output.write(ConnectorUtils.renderStatus(status).getBytes());
-      // 要将文件转换成Buffer(byte数组)
-      byte[] buffer = new byte[BUFFER_SIZE];
-      int length = 0;
-      // 文件比较大，所以需要while循环
-      while ((length = fis.read(buffer, 0, BUFFER_SIZE)) != -1) {
-        output.write(buffer, 0, length);
+      // 用缓冲区池中的直接内存搬运文件，不再每次请求都new一个byte数组
+      FileChannel fileChannel = fis.getChannel();
+      WritableByteChannel outChannel = Channels.newChannel(output);
+      BufferPool pool = BufferPool.getDefault();
+      ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+      try {
+        // 文件比较大，所以需要while循环
+        while (fileChannel.read(buffer) != -1) {
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            outChannel.write(buffer);
+          }
+          buffer.clear();
+        }
+      } finally {
+        pool.release(buffer);
       }
     }
   }